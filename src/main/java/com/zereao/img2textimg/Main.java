@@ -1,7 +1,9 @@
 package com.zereao.img2textimg;
 
 import com.zereao.img2textimg.converter.AbstractImgConverter;
+import com.zereao.img2textimg.converter.ConvertOptions;
 import com.zereao.img2textimg.converter.ConverterFactory;
+import com.zereao.img2textimg.converter.OutputMode;
 import com.zereao.img2textimg.utils.Logger;
 import com.zereao.img2textimg.utils.ScannerUtils;
 import com.zereao.img2textimg.utils.ThreadPoolUtils;
@@ -34,9 +36,10 @@ public class Main {
         try {
             Main main = new Main();
             List<File> fileList = main.getTargetFiles();
+            ConvertOptions options = main.getOptions();
             if (fileList.size() > 2) {
                 CountDownLatch latch = new CountDownLatch(fileList.size());
-                fileList.forEach(img -> ThreadPoolUtils.execute(main.new MultiTask(img, latch)));
+                fileList.forEach(img -> ThreadPoolUtils.execute(main.new MultiTask(img, options, latch)));
                 try {
                     latch.await();
                 } catch (InterruptedException e) {
@@ -45,8 +48,8 @@ public class Main {
             } else {
                 fileList.forEach(img -> {
                     String imgPath = img.getAbsolutePath();
-                    try (FileInputStream fis = new FileInputStream(img)) {
-                        ConverterFactory.getInstance(img).transfer2TextImg(fis, imgPath);
+                    try {
+                        ConverterFactory.getInstance(img, options).transfer2TextImg(img.toPath());
                     } catch (IOException e) {
                         log.error(e, "图片转化失败！,filePath = {}", imgPath);
                     }
@@ -100,20 +103,44 @@ public class Main {
         return fileList;
     }
 
+    /**
+     * 获取本次转换的配置，由用户选择输出模式以及是否使用彩色模式
+     *
+     * @return 转换配置
+     */
+    private ConvertOptions getOptions() {
+        OutputMode[] modes = OutputMode.values();
+        System.out.print("\n请选择输出模式：");
+        for (int i = 0; i < modes.length; i++) {
+            System.out.printf("%s：%s  ", i + 1, modes[i].getName());
+        }
+        System.out.print("，直接按回车键默认生成图片:");
+        String modeStr = ScannerUtils.getInstance().nextLine().trim();
+        ConvertOptions options = new ConvertOptions();
+        if (!"".equals(modeStr)) {
+            options.setOutputMode(modes[Integer.valueOf(modeStr) - 1]);
+        }
+        System.out.print("是否使用彩色模式？输入 y 使用彩色，直接按回车键默认黑白:");
+        options.setColored("y".equalsIgnoreCase(ScannerUtils.getInstance().nextLine().trim()));
+        log.info("您选择的输出模式为：{}，彩色模式：{}", options.getOutputMode().getName(), options.isColored());
+        return options;
+    }
+
     /**
      * 如果用户选择了超过2个文件，则使用多线程处理；多线程任务
      */
     @AllArgsConstructor
     private class MultiTask implements Runnable {
         private File img;
+        private ConvertOptions options;
         private CountDownLatch latch;
 
         @Override
         public void run() {
-            AbstractImgConverter converter = ConverterFactory.getInstance(img);
+            AbstractImgConverter converter = ConverterFactory.getInstance(img, options);
             String imgPath = img.getAbsolutePath();
-            try (FileInputStream fis = new FileInputStream(img)) {
-                converter.transfer2TextImg(fis, imgPath);
+            try {
+                converter.transfer2TextImg(img.toPath());
             } catch (IOException e) {
                 log.error(e, "图片转换失败！filePath = {}", imgPath);
             } finally {
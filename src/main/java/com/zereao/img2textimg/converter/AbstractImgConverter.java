@@ -1,15 +1,23 @@
 package com.zereao.img2textimg.converter;
 
 import com.zereao.img2textimg.utils.Logger;
+import com.zereao.img2textimg.utils.ThreadPoolUtils;
 import lombok.AllArgsConstructor;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.CountDownLatch;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author Zereao
@@ -19,11 +27,41 @@ public abstract class AbstractImgConverter {
 
     protected Logger log = Logger.getInstance();
 
+    /**
+     * 本次转换任务的配置
+     */
+    protected final ConvertOptions options;
+
     /**
      * 组成图案的基本字符元素
      */
     private final String strElements = "@#&$%*o!; ";
 
+    /**
+     * 每个字符单元格对应原图中的像素边长
+     */
+    protected static final int CELL_INTERVAL = 2;
+
+    /**
+     * 背景色、前景色
+     */
+    protected static final int BACKGROUND_RGB = 0xFFFFFFFF;
+    protected static final int FOREGROUND_RGB = 0xFF000000;
+
+    /**
+     * 灰度值 -> 字符元素下标 查找表，共256项，避免逐像素进行浮点运算
+     */
+    private final byte[] grayIndexTable = this.buildGrayIndexTable();
+
+    /**
+     * 文本输出时每个字符单元格的高宽比，终端中字符的高度约为宽度的两倍
+     */
+    protected static final int TEXT_CELL_ASPECT = 2;
+
+    protected AbstractImgConverter(ConvertOptions options) {
+        this.options = options;
+    }
+
     /**
      * 将图片转换为字符画，由子类实现
      *
@@ -34,80 +72,259 @@ public abstract class AbstractImgConverter {
     public abstract void transfer2TextImg(InputStream source, String sourcePath) throws IOException;
 
     /**
-     * 图片转字符数组，宽 x 高 = 1 x 1
-     * 返回的二维数组的大小等于 Height ； 元素的大小等于 Width
+     * 将本地图片文件转换为字符画，由子类实现；文件以内存映射的方式读取，不会整体拷贝到堆内存中
+     *
+     * @param source 源文件路径，生成的文件也将放在该路径下
+     * @throws IOException IO异常
+     */
+    public abstract void transfer2TextImg(Path source) throws IOException;
+
+    /**
+     * 图片转字符网格，每个字符对应原图中 CELL_INTERVAL x CELL_INTERVAL 的像素块
+     * 网格的行数等于 Height / CELL_INTERVAL ； 列数等于 Width / CELL_INTERVAL (向上取整)
      *
      * @param img BufferedImage图片
-     * @return 转换后二维字符数组
+     * @return 转换后的字符网格
      */
-    public char[][] transfer2CharArray(BufferedImage img) {
-        int len = strElements.length();
-        int width = img.getWidth();
-        int height = img.getHeight();
-        char[][] result = new char[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int index = this.getCharIndex(img.getRGB(j, i));
-                result[i][j] = index >= len ? ' ' : strElements.charAt(index);
-            }
+    public TextGrid transfer2TextGrid(BufferedImage img) {
+        return this.transfer2TextGrid(img, this.gridCols(img.getWidth()), this.gridRows(img.getHeight(), false));
+    }
+
+    /**
+     * 图片转字符网格，只计算目标字符网格中的单元格
+     * 原图被均分为 rows x cols 个矩形区域，每个单元格取对应区域内所有像素的平均灰度，而不是只取一个点
+     *
+     * @param img  BufferedImage图片
+     * @param cols 字符网格列数
+     * @param rows 字符网格行数
+     * @return 转换后的字符网格
+     */
+    public TextGrid transfer2TextGrid(BufferedImage img, int cols, int rows) {
+        try {
+            return this.transfer2TextGrid(img, cols, rows, null);
+        } catch (IOException e) {
+            // 没有监听器，不会出现IO异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 图片转字符网格，每转换完一行就通知监听器，用于边转换边输出
+     *
+     * @param img      BufferedImage图片
+     * @param cols     字符网格列数
+     * @param rows     字符网格行数
+     * @param listener 行监听器，可以为 null
+     * @return 转换后的字符网格
+     * @throws IOException 监听器抛出的IO异常
+     */
+    public TextGrid transfer2TextGrid(BufferedImage img, int cols, int rows, TextGrid.RowListener listener) throws IOException {
+        TextGrid grid = this.createTextGrid(cols, rows);
+        this.transfer2TextGrid(img, grid, 0, rows, listener);
+        return grid;
+    }
+
+    /**
+     * 将原图的一个水平条带转换为字符网格中的 [rowFrom, rowTo) 行，用于分带处理超大图片
+     *
+     * @param band     原图的水平条带，恰好覆盖 [rowFrom, rowTo) 行单元格
+     * @param grid     字符网格
+     * @param rowFrom  起始行（包含）
+     * @param rowTo    结束行（不包含）
+     * @param listener 行监听器，可以为 null
+     * @throws IOException 监听器抛出的IO异常
+     */
+    public void transfer2TextGrid(BufferedImage band, TextGrid grid, int rowFrom, int rowTo, TextGrid.RowListener listener) throws IOException {
+        GridMapper mapper = new GridMapper(band, grid, grayIndexTable, rowFrom, rowTo);
+        long pixels = (long) band.getWidth() * band.getHeight();
+        if (listener != null || pixels <= options.getParallelThreshold()) {
+            // 需要按行顺序输出，或者图片较小，使用串行
+            mapper.mapRows(rowFrom, rowTo, listener);
+        } else {
+            // 大图按单元格行拆分为条带，并行计算
+            StripeTask.invoke((from, to) -> mapper.mapRows(rowFrom + from, rowFrom + to), rowTo - rowFrom);
         }
-        return result;
+    }
+
+    /**
+     * @param cols 字符网格列数
+     * @param rows 字符网格行数
+     * @return 按当前配置创建的空字符网格
+     */
+    protected TextGrid createTextGrid(int cols, int rows) {
+        return new TextGrid(strElements, cols, rows, options.isColored());
+    }
+
+    /**
+     * 图片转字符后直接以文本形式写出，每转换完一行即写出一行，不进行光栅化
+     * 字符单元格的高宽比为 TEXT_CELL_ASPECT，使文本在终端中保持原图比例
+     *
+     * @param img    BufferedImage图片
+     * @param writer 文本输出
+     * @throws IOException IO异常
+     */
+    public void transfer2Text(BufferedImage img, TextGridWriter writer) throws IOException {
+        this.transfer2Text(img, this.gridCols(img.getWidth()), this.gridRows(img.getHeight(), true), writer);
+    }
+
+    /**
+     * 图片转字符后直接以文本形式写出，字符网格的大小由调用方指定
+     *
+     * @param img    BufferedImage图片
+     * @param cols   字符网格列数
+     * @param rows   字符网格行数
+     * @param writer 文本输出
+     * @throws IOException IO异常
+     */
+    public void transfer2Text(BufferedImage img, int cols, int rows, TextGridWriter writer) throws IOException {
+        writer.beginFrame();
+        this.transfer2TextGrid(img, cols, rows, writer::writeRow);
+        writer.endFrame();
     }
 
     /**
      * 图片转字符再保存为图片，并写入本地磁盘
      *
-     * @param chars      原图转出的二维字符数组
+     * @param grid       原图转出的字符网格，每个字符占 CELL_INTERVAL x zoom 像素见方
      * @param fontSizePt 转换出的图片中的文字大小，单位 pt(磅)，推荐 8；
      * @param zoom       缩放倍数，推荐传 8 / 2 =4；
      * @return 生成的文件的信息Map
      */
-    public BufferedImage textToBufferedImage(char[][] chars, int fontSizePt, int zoom) {
-        int width = chars[0].length * zoom;
-        int height = chars.length * zoom;
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        // 获取图像上下文
-        Graphics graphics = this.createGraphics(bufferedImage, width, height, fontSizePt);
+    public BufferedImage textToBufferedImage(TextGrid grid, int fontSizePt, int zoom) {
         /* 字体大小 单位换算   磅 pt = 像素 px 乘 3/4
             int interval = fontSizePt * 3 / 4 / zoom + 1;  然而 zoom = fontSizePt / 2 ，所以计算出 interval 为固定值 2  */
-        int interval = 2;
+        int interval = CELL_INTERVAL;
+        int pitch = interval * zoom;
+        int width = grid.getWidth() * pitch;
+        int height = grid.getHeight() * pitch;
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+        // 字形图集，每种字体大小只光栅化一次
+        GlyphAtlas atlas = GlyphAtlas.of(strElements, fontSizePt);
         int fontSizePx = Math.round(fontSizePt * 3 / 4f);
         log.info("计算出图片的字体大小为：{}磅，即{}像素；字体间隔为：{}像素", fontSizePt, fontSizePx, interval);
-        for (int i = 0, lenOfH = chars.length; i < lenOfH; i += interval) {
-            for (int j = 0, lenOfW = chars[i].length; j < lenOfW; j += interval) {
-                graphics.drawString(String.valueOf(chars[i][j]), j * zoom, i * zoom);
-            }
+        GridRenderer renderer = new GridRenderer(grid, atlas, width, pitch, BACKGROUND_RGB, FOREGROUND_RGB);
+        if ((long) width * height <= options.getParallelThreshold()) {
+            renderer.renderRows(pixels, 0, 0, height);
+        } else {
+            // 大图按像素行拆分为条带，每个条带只写入自己的像素行，并行绘制
+            StripeTask.invoke((from, to) -> renderer.renderRows(pixels, 0, from, to), height);
         }
-        graphics.dispose();
         return bufferedImage;
     }
 
+    /**
+     * 为分带处理创建 PNG 输出，字符网格每转换完一个条带调用一次 {@link BandImageWriter#writeReadyRows(int)}
+     *
+     * @param grid     字符网格，可以尚未转换完毕
+     * @param fontSize 字体大小
+     * @param outImg   输出文件
+     * @return 分带渲染输出
+     * @throws IOException IO异常
+     */
+    protected BandImageWriter createBandImageWriter(TextGrid grid, int fontSize, File outImg) throws IOException {
+        int pitch = CELL_INTERVAL * (fontSize / 2);
+        GlyphAtlas atlas = GlyphAtlas.of(strElements, fontSize);
+        int width = grid.getWidth() * pitch;
+        GridRenderer renderer = new GridRenderer(grid, atlas, width, pitch, BACKGROUND_RGB, FOREGROUND_RGB);
+        return new BandImageWriter(renderer, new FileOutputStream(outImg), width, grid.getHeight() * pitch, options.getParallelThreshold());
+    }
+
+    /**
+     * 为动画创建帧间增量渲染，按帧顺序调用 {@link IncrementalRenderer#render(TextGrid)}
+     *
+     * @param fontSizePt 字体大小
+     * @param zoom       缩放倍数
+     * @return 帧间增量渲染
+     */
+    protected IncrementalRenderer createIncrementalRenderer(int fontSizePt, int zoom) {
+        GlyphAtlas atlas = GlyphAtlas.of(strElements, fontSizePt);
+        return new IncrementalRenderer(atlas, CELL_INTERVAL * zoom, BACKGROUND_RGB, FOREGROUND_RGB);
+    }
+
+    /**
+     * 多种字体大小并行渲染：每个字体大小一个 渲染 + 写文件 任务，共用同一个只读的字符网格，
+     * 所有字体大小都写入完成后才返回
+     * <p>
+     * 任务提交到共享的 ForkJoinPool 而不是 ThreadPoolUtils：调用方本身可能就运行在 ThreadPoolUtils 的线程中，
+     * 多张图片同时转换时核心线程会全部在此等待，排在其后的渲染任务永远得不到执行
+     *
+     * @param grid       字符网格
+     * @param sourcePath 源文件路径，生成的文件也将放在该路径下
+     * @param fontSizes  需要生成的字体大小
+     * @throws IOException 任一字体大小渲染或写文件失败，其他字体大小仍会完成
+     */
+    protected void renderAll(TextGrid grid, String sourcePath, int... fontSizes) throws IOException {
+        List<Text2ImgTask> tasks = new ArrayList<>(fontSizes.length);
+        for (int fontSize : fontSizes) {
+            tasks.add(new Text2ImgTask(grid, sourcePath, fontSize));
+            log.info("开始转换：fontSize = {}，zoom = {}，文件保存路径为：{}",
+                    fontSize, fontSize / 2, this.getOutputFile(sourcePath, fontSize));
+        }
+        for (Future<Void> result : ThreadPoolUtils.getForkJoinPool().invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("图片渲染被中断！");
+            } catch (ExecutionException e) {
+                // 渲染中的 OutOfMemoryError 等异常原样抛给调用方，不能当作转换成功
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
     /**
      * 图片转字符画多线程任务
      */
     @AllArgsConstructor
-    public class Text2ImgTask implements Runnable {
-        private char[][] chars;
+    public class Text2ImgTask implements Callable<Void> {
+        private TextGrid grid;
         private String outPath;
         private int fontSize;
-        private CountDownLatch latch;
 
         @Override
-        public void run() {
-            try {
-                int zoom = fontSize / 2;
-                File outImg = getOutputFile(outPath, fontSize);
-                BufferedImage img = textToBufferedImage(chars, fontSize, zoom);
-                boolean result = ImageIO.write(img, outPath.substring(outPath.lastIndexOf(".") + 1), outImg);
-                log.info("转换{}！生成文件路径：{}", result ? "成功" : "失败", outImg.getAbsolutePath());
-            } catch (IOException e) {
-                log.error(e, "图片转化 Text2ImgTask 出现IOException！");
-            } finally {
-                latch.countDown();
-            }
+        public Void call() throws IOException {
+            int zoom = fontSize / 2;
+            File outImg = getOutputFile(outPath, fontSize);
+            BufferedImage img = textToBufferedImage(grid, fontSize, zoom);
+            boolean result = ImageIO.write(img, outPath.substring(outPath.lastIndexOf(".") + 1), outImg);
+            log.info("转换{}！生成文件路径：{}", result ? "成功" : "失败", outImg.getAbsolutePath());
+            return null;
         }
     }
 
+    /**
+     * 根据图片宽度计算字符网格的列数
+     *
+     * @param width 图片宽度，可以是缩放后的小数宽度
+     * @return 列数，至少为 1
+     */
+    protected int gridCols(double width) {
+        return Math.max(1, (int) Math.ceil(width / CELL_INTERVAL));
+    }
+
+    /**
+     * 根据图片高度计算字符网格的行数
+     *
+     * @param height 图片高度，可以是缩放后的小数高度
+     * @param text   是否为文本输出，文本输出时单元格的高宽比为 TEXT_CELL_ASPECT
+     * @return 行数，至少为 1
+     */
+    protected int gridRows(double height, boolean text) {
+        return Math.max(1, (int) Math.ceil(height / (text ? CELL_INTERVAL * TEXT_CELL_ASPECT : CELL_INTERVAL)));
+    }
+
     /**
      * 根据相关参数，生成文件在源文件的基础上，在文件名中加上 字体大小、缩放倍数等参数配置信息
      *
@@ -124,53 +341,45 @@ public abstract class AbstractImgConverter {
         return out;
     }
 
-    protected File getCompressedFile(BufferedImage bi, String sourcePath, int maxLine) {
-        String ext = sourcePath.substring(sourcePath.lastIndexOf(".") + 1);
-        StringBuilder config = new StringBuilder("_maxLine=").append(maxLine);
-        String outPath = new StringBuilder(sourcePath).insert(sourcePath.lastIndexOf("."), config).toString();
-        File out = new File(outPath);
-        try {
-            ImageIO.write(bi, ext, out);
-        } catch (IOException e) {
-            log.error(e, "文件[{}]压缩后，保存失败！outPath = {}", sourcePath, outPath);
+    /**
+     * 文本输出模式下，在源文件名中加上输出模式，并替换扩展名
+     *
+     * @param outPath 源文件路径
+     * @param mode    输出模式
+     * @return 输出文件的File对象
+     */
+    protected File getOutputFile(String outPath, OutputMode mode) {
+        String config = "_mode=" + mode.getName() + "." + mode.getExtension();
+        File out = new File(outPath.substring(0, outPath.lastIndexOf(".")) + config);
+        if (!out.getParentFile().exists()) {
+            boolean mkdirs = out.getParentFile().mkdirs();
         }
         return out;
     }
 
     /**
-     * 提取的公共方法，根据像素值pixel获取该像素应该填充的字符元素的索引
+     * 提取的公共方法，根据灰度值gray获取该像素应该填充的字符元素的索引
      *
-     * @param pixel 像素值
+     * @param gray 灰度值，见 {@link LuminanceKernel#gray(int)}
      * @return 填充元素的索引
      */
-    private int getCharIndex(int pixel) {
-        // 下面三行代码将一个数字转换为RGB数字
-        int red = (pixel & 0xff0000) >> 16;
-        int green = (pixel & 0xff00) >> 8;
-        int blue = (pixel & 0xff);
-        float gray = 0.299f * red + 0.578f * green + 0.114f * blue;
-        return Math.round(gray * (strElements.length() + 1) / 255);
+    private int getCharIndex(int gray) {
+        return Math.round(gray * (strElements.length() + 1) / 255f);
     }
 
     /**
-     * 画板默认一些参数设置
+     * 构建 灰度值 -> 字符元素下标 查找表，超出字符元素范围的灰度使用空白字符
      *
-     * @param image    图片
-     * @param width    图片宽
-     * @param height   图片高
-     * @param fontSize 字体大小
-     * @return 创建的Graphics对象
-     */
-    private Graphics createGraphics(BufferedImage image, int width, int height, int fontSize) {
-        Graphics graphics = image.createGraphics();
-        // 设置背景色
-        graphics.setColor(null);
-        // 绘制背景
-        graphics.fillRect(0, 0, width, height);
-        // 设置前景色
-        graphics.setColor(Color.BLACK);
-        // 设置字体
-        graphics.setFont(new Font("宋体", Font.PLAIN, fontSize));
-        return graphics;
+     * @return 256项的查找表
+     */
+    private byte[] buildGrayIndexTable() {
+        int len = strElements.length();
+        int blank = strElements.indexOf(' ');
+        byte[] table = new byte[256];
+        for (int gray = 0; gray < table.length; gray++) {
+            int index = this.getCharIndex(gray);
+            table[gray] = (byte) (index >= len ? blank : index);
+        }
+        return table;
     }
 }
@@ -0,0 +1,72 @@
+package com.zereao.img2textimg.converter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 分带渲染输出：字符网格每转换完一个条带，就把已经不会再被后续单元格覆盖的像素行绘制出来并写入 PNG，
+ * 只保留一个条带大小的像素数组，内存占用与输出图片的高度无关
+ *
+ * @author Zereao
+ * @version 2019/05/27 14:40
+ */
+final class BandImageWriter implements Closeable {
+    private final GridRenderer renderer;
+    private final PngStreamWriter png;
+    private final int width;
+    /**
+     * 像素数超过该阈值的条带并行绘制
+     */
+    private final int parallelThreshold;
+    private int[] pixels = new int[0];
+    /**
+     * 已经写出的像素行数
+     */
+    private int rowsWritten;
+
+    /**
+     * @param renderer          字符网格渲染
+     * @param out               输出流，关闭时一并关闭
+     * @param width             输出图片宽
+     * @param height            输出图片高
+     * @param parallelThreshold 像素数超过该阈值的条带并行绘制
+     * @throws IOException IO异常
+     */
+    BandImageWriter(GridRenderer renderer, OutputStream out, int width, int height, int parallelThreshold) throws IOException {
+        this.renderer = renderer;
+        this.png = new PngStreamWriter(out, width, height);
+        this.width = width;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * 字符网格的前 mappedRows 行已经转换完毕，绘制并写出所有已经可以确定的像素行
+     *
+     * @param mappedRows 已转换的单元格行数
+     * @throws IOException IO异常
+     */
+    void writeReadyRows(int mappedRows) throws IOException {
+        int from = rowsWritten, to = renderer.readyRows(mappedRows);
+        if (to <= from) {
+            return;
+        }
+        int count = to - from;
+        if (pixels.length < count * width) {
+            pixels = new int[count * width];
+        }
+        int[] pixels = this.pixels;
+        if ((long) count * width <= parallelThreshold) {
+            renderer.renderRows(pixels, from, from, to);
+        } else {
+            StripeTask.invoke((stripeFrom, stripeTo) -> renderer.renderRows(pixels, from, from + stripeFrom, from + stripeTo), count);
+        }
+        png.writeRows(pixels, count);
+        rowsWritten = to;
+    }
+
+    @Override
+    public void close() throws IOException {
+        png.close();
+    }
+}
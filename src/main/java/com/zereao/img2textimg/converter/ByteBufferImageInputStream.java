@@ -0,0 +1,80 @@
+package com.zereao.img2textimg.converter;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 基于 ByteBuffer 的 ImageInputStream：ImageIO 直接从内存映射的文件中读取，
+ * 不经过 InputStream 的缓存，也不会把整个文件拷贝到堆内存中
+ *
+ * @author Zereao
+ * @version 2019/06/03 10:26
+ */
+final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer 图片数据，从 position 到 limit
+     */
+    ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * 以只读方式内存映射文件
+     *
+     * @param path 文件路径
+     * @return 映射后的输入流；文件超过 2GB 无法映射时返回 null
+     * @throws IOException IO异常
+     */
+    static ByteBufferImageInputStream map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // 关闭 channel 后映射仍然有效
+            return new ByteBufferImageInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        return buffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("off = " + off + ", len = " + len + ", b.length = " + b.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        bitOffset = 0;
+        long remaining = buffer.limit() - streamPos;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = (int) Math.min(len, remaining);
+        buffer.position((int) streamPos);
+        buffer.get(b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+}
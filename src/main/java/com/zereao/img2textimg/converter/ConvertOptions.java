@@ -0,0 +1,43 @@
+package com.zereao.img2textimg.converter;
+
+import lombok.Data;
+
+/**
+ * 单次转换任务的配置，由 ConverterFactory 传给转换器
+ *
+ * @author Zereao
+ * @version 2019/05/13 16:31
+ */
+@Data
+public class ConvertOptions {
+    /**
+     * 输出模式，默认生成字符画图片
+     */
+    private OutputMode outputMode = OutputMode.IMAGE;
+    /**
+     * 静态图片需要生成的字体大小，每个字体大小生成一个文件
+     */
+    private int[] fontSizes = {10, 11, 12, 13, 14};
+    /**
+     * 彩色模式：每个字符使用其覆盖的原图区域的平均颜色
+     */
+    private boolean colored = false;
+    /**
+     * 像素数超过该阈值的单张图片，按行拆分为条带并行转换、并行渲染；不超过的使用串行
+     */
+    private int parallelThreshold = 1 << 20;
+    /**
+     * 降采样解码后的原图或生成的字符画图片，像素数超过该阈值时分带处理：逐个条带解码、转换、渲染并写出，
+     * 内存占用只与条带高度有关；设为 0 则总是分带处理
+     */
+    private long tileThreshold = 1 << 24;
+    /**
+     * 分带处理时每个条带包含的字符网格行数
+     */
+    private int bandRows = 64;
+    /**
+     * GIF 编码时，一帧中需要编码的像素数超过该值则按该值拆分为多段，各段以清除码开头并行 LZW 压缩；
+     * 段越小并行度越高，但压缩率越低（测试动画上 1M 像素的段使文件增大约 0.5%，256K 像素约 12%）；设为 0 则每帧串行压缩
+     */
+    private int lzwStripSize = 1 << 20;
+}
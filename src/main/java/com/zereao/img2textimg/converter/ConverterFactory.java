@@ -25,12 +25,23 @@ public class ConverterFactory {
      * @return 对应的转换器
      */
     public static AbstractImgConverter getInstance(File img) {
+        return getInstance(img, new ConvertOptions());
+    }
+
+    /**
+     * 工厂方法，根据文件获取对应的转换器，并指定本次转换任务的配置，如输出模式、字体大小等
+     *
+     * @param img     图片文件File对象
+     * @param options 转换任务配置
+     * @return 对应的转换器
+     */
+    public static AbstractImgConverter getInstance(File img, ConvertOptions options) {
         AbstractImgConverter converter = null;
         String imgPath = img.getAbsolutePath().toLowerCase();
         if (imgPath.endsWith("gif")) {
-            converter = new GIF2TextImgConverter();
+            converter = new GIF2TextImgConverter(options);
         } else if (IMG_EXT_PATTERN.matcher(imgPath).find()) {
-            converter = new JPEG2TextImgConverter();
+            converter = new JPEG2TextImgConverter(options);
         } else {
             log.error(new IllegalArgumentException("未知的文件格式！"), "未知的图片格式！imgPath = {}", imgPath);
         }
@@ -0,0 +1,78 @@
+package com.zereao.img2textimg.converter;
+
+import com.zereao.img2textimg.utils.ThreadPoolUtils;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * 帧处理引擎：在共享的 ForkJoinPool 中按下标区间二分处理一组帧，第 i 帧的结果写入结果数组的第 i 项
+ * <p>
+ * 拆分粒度自适应：只有当前线程的任务队列中积压的任务不多时才继续拆分，空闲线程多时拆得细，繁忙时整段处理
+ *
+ * @author Zereao
+ * @version 2019/06/10 15:12
+ */
+final class FrameEngine<S, R> extends RecursiveAction {
+    /**
+     * 当前线程队列中积压的任务超过该值时不再拆分
+     */
+    private static final int MAX_SURPLUS = 2;
+
+    private final Function<S, R> function;
+    private final S[] source;
+    private final R[] result;
+    private final int from;
+    private final int to;
+    /**
+     * 同一次拆分中先 fork 出去的任务，按相反顺序 join
+     */
+    private FrameEngine<S, R> next;
+
+    private FrameEngine(Function<S, R> function, S[] source, R[] result, int from, int to) {
+        this.function = function;
+        this.source = source;
+        this.result = result;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * 在共享的 ForkJoinPool 中异步处理 source 的 [0, count) 帧
+     *
+     * @param function 单帧处理逻辑
+     * @param source   源帧
+     * @param result   预先分配的结果数组，长度不小于 count
+     * @param count    帧数
+     * @return 全部处理完毕时完成的任务
+     */
+    static <S, R> ForkJoinTask<Void> submit(Function<S, R> function, S[] source, R[] result, int count) {
+        return ThreadPoolUtils.getForkJoinPool().submit(new FrameEngine<>(function, source, result, 0, count));
+    }
+
+    @Override
+    protected void compute() {
+        int hi = to;
+        FrameEngine<S, R> forked = null;
+        while (hi - from > 1 && getSurplusQueuedTaskCount() <= MAX_SURPLUS) {
+            int mid = (from + hi) >>> 1;
+            FrameEngine<S, R> right = new FrameEngine<>(function, source, result, mid, hi);
+            right.next = forked;
+            forked = right;
+            right.fork();
+            hi = mid;
+        }
+        for (int i = from; i < hi; i++) {
+            result[i] = function.apply(source[i]);
+        }
+        for (; forked != null; forked = forked.next) {
+            // 还没有被其他线程窃取的任务直接在本线程执行
+            if (forked.tryUnfork()) {
+                forked.compute();
+            } else {
+                forked.join();
+            }
+        }
+    }
+}
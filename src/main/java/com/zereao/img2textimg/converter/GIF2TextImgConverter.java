@@ -2,82 +2,283 @@ package com.zereao.img2textimg.converter;
 
 import com.zereao.img2textimg.converter.gifencoder.AnimatedGifEncoder;
 import com.zereao.img2textimg.converter.gifencoder.GifDecoder;
+import com.zereao.img2textimg.utils.ThreadPoolUtils;
 import lombok.AllArgsConstructor;
 
+import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 /**
  * @author Zereao
  * @version 2019/04/12 14:45
  */
 public class GIF2TextImgConverter extends AbstractImgConverter {
+
+    /**
+     * 有序缓冲区的结束标记
+     */
+    private static final FrameBatch END_OF_FRAMES = new FrameBatch(new TextGrid[0], new int[0], 0);
+    /**
+     * 彩色模式下调色板窗口的帧数：每个窗口按其中所有帧的颜色训练一次调色板
+     */
+    private static final int PALETTE_WINDOW_FRAMES = 8;
+
+    public GIF2TextImgConverter(ConvertOptions options) {
+        super(options);
+    }
+
     @Override
     public void transfer2TextImg(InputStream source, String sourcePath) throws IOException {
+        this.transfer2TextImg(GifDecoder.read(source), sourcePath);
+    }
+
+    @Override
+    public void transfer2TextImg(Path source) throws IOException {
+        // GifDecoder 直接从内存映射的文件中解析
+        this.transfer2TextImg(GifDecoder.read(source), source.toAbsolutePath().toString());
+    }
+
+    private void transfer2TextImg(GifDecoder.GifImage gif, String sourcePath) throws IOException {
         int fontSizePt = 8;
-        GifDecoder.GifImage gif = GifDecoder.read(source);
-        Map<Integer, BufferedImage> imgMap = new HashMap<>(16);
-        for (int i = 0, frameNum = gif.getFrameCount(); i < frameNum; i++) {
-            imgMap.put(i, gif.getFrame(i));
+        // 各帧的 LZW 解码在共享的 ForkJoinPool 中提前并行进行，合成仍按帧顺序进行
+        ForkJoinPool pool = ThreadPoolUtils.getForkJoinPool();
+        gif.setDecodePool(pool, pool.getParallelism() * 2);
+        // 帧按顺序流过 解码 -> 转换 -> 输出，解码器不保留已返回的帧
+        gif.setMemoryBudget(0);
+        OutputMode mode = options.getOutputMode();
+        if (mode.isText()) {
+            this.transfer2Text(gif, sourcePath, mode);
+            return;
         }
-        ForkJoinPool forkJoinPool = new ForkJoinPool();
-        ForkJoinTask<Map<Integer, BufferedImage>> task = forkJoinPool.submit(new Text2GifForkJoinTask(imgMap, fontSizePt));
-        Map<Integer, BufferedImage> resultMap = new TreeMap<>();
+        File outFile = this.getOutputFile(sourcePath, fontSizePt);
+        int frameNum = gif.getFrameCount();
+        // 每批帧数，一批帧由帧处理引擎按下标区间并行转换为字符网格
+        int batchSize = pool.getParallelism();
+        // 有界的有序缓冲区：按帧顺序保存各批的字符网格，编码线程按顺序取出，只缓存一批；缓冲区满时解码阻塞，形成背压
+        BlockingQueue<FrameBatch> pending = new ArrayBlockingQueue<>(1);
+        AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+        if (!options.isColored()) {
+            // 黑白模式下帧中只有背景色和前景色，使用固定的双色调色板，跳过颜色量化，LZW 按 1 位色深编码
+            encoder.setPalette(new Color(BACKGROUND_RGB), new Color(FOREGROUND_RGB));
+        }
+        // 相邻帧通常只有少量单元格不同，只编码变化的矩形区域
+        encoder.setDeltaFrames(true);
+        // 编码线程由本次转换独占，不能提交到 ThreadPoolUtils：多张图片同时转换时，该线程池的核心线程可能全部在此等待编码结果，
+        // 排队的编码任务永远得不到执行
+        FutureTask<Integer> encoding = new FutureTask<>(() -> this.encode(encoder, pending, outFile, fontSizePt));
+        Thread encoderThread = new Thread(encoding, "gif-encoder-" + outFile.getName());
+        encoderThread.setDaemon(true);
+        encoderThread.start();
+        // 上一个输出帧的字符网格及其指纹
+        TextGrid last = null;
+        long lastFingerprint = 0;
         try {
-            resultMap.putAll(task.get());
-        } catch (InterruptedException | ExecutionException e) {
-            log.error(e, "Text2GifForkJoinTask get()中断，或者执行异常！");
+            for (int from = 0; from < frameNum && !encoding.isDone(); from += batchSize) {
+                int count = Math.min(batchSize, frameNum - from);
+                BufferedImage[] frames = new BufferedImage[count];
+                for (int i = 0; i < count; i++) {
+                    frames[i] = gif.getFrame(from + i);
+                }
+                // 先并行转换出字符网格，在渲染之前合并相邻的相同网格
+                TextGrid[] grids = new TextGrid[count];
+                FrameEngine.submit(this::transfer2TextGrid, frames, grids, count).join();
+                TextGrid[] unique = new TextGrid[count];
+                int[] delays = new int[count];
+                int uniqueNum = 0, carry = 0;
+                for (int i = 0; i < count; i++) {
+                    int delay = gif.getDelay(from + i);
+                    long fingerprint = grids[i].fingerprint();
+                    if (last != null && fingerprint == lastFingerprint && grids[i].sameContent(last)) {
+                        // 与上一个输出帧相同：不再渲染和编码，只把延迟累加到上一个输出帧上
+                        if (uniqueNum == 0) {
+                            carry += delay;
+                        } else {
+                            delays[uniqueNum - 1] += delay;
+                        }
+                        continue;
+                    }
+                    last = grids[i];
+                    lastFingerprint = fingerprint;
+                    unique[uniqueNum] = grids[i];
+                    delays[uniqueNum++] = delay;
+                }
+                this.enqueue(pending, new FrameBatch(Arrays.copyOf(unique, uniqueNum), delays, carry), encoding);
+            }
+        } finally {
+            this.enqueue(pending, END_OF_FRAMES, encoding);
         }
-        if (resultMap.size() <= 0) {
-            log.info("图片[{}]转换失败！", sourcePath);
-            return;
+        try {
+            int count = encoding.get();
+            log.info("GIF转换成功！共{}帧，生成文件路径：{}", count, outFile.getAbsolutePath());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("GIF编码被中断！");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            log.error(e.getCause(), "图片[{}]转换失败！", sourcePath);
         }
-        AnimatedGifEncoder encoder = new AnimatedGifEncoder();
-        File outFile = this.getOutputFile(sourcePath, fontSizePt);
-        boolean result = encoder.start(outFile);
-        // 获取第二帧的延迟
-        encoder.setDelay(gif.getDelay(1));
-        resultMap.forEach((k, v) -> encoder.addFrame(v));
-        result = encoder.finish();
-        log.info("GIF转换成功！生成文件路径：{}", outFile.getAbsolutePath());
     }
 
     /**
-     * GIF图片转GIF字符画多线程ForkJoin任务
+     * 放入有序缓冲区，缓冲区满时等待编码线程取走最早的一批；编码线程已经结束（出错）时放弃
      */
-    @AllArgsConstructor
-    private class Text2GifForkJoinTask extends RecursiveTask<Map<Integer, BufferedImage>> {
-        private Map<Integer, BufferedImage> frameMap;
-        private Integer fontSizePt;
+    private void enqueue(BlockingQueue<FrameBatch> pending, FrameBatch batch, Future<?> encoding) throws InterruptedIOException {
+        try {
+            while (!pending.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (encoding.isDone()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("GIF转换被中断！");
+        }
+    }
 
-        @Override
-        protected Map<Integer, BufferedImage> compute() {
-            int eachThreadTaskNum = 5;
-            int zoom = fontSizePt / 2;
-            boolean canCompute = frameMap.size() <= eachThreadTaskNum;
-            Map<Integer, BufferedImage> resultMap = new ConcurrentHashMap<>();
-            if (canCompute) {
-                frameMap.forEach((index, img) -> resultMap.put(index, textToBufferedImage(transfer2CharArray(img), fontSizePt, zoom)));
-                return resultMap;
-            } else {
-                List<Text2GifForkJoinTask> taskList = new ArrayList<>();
-                // 拆分任务的数量 24 / 5 = 4 ······ 1  ，  25 / 5 = 5
-                int splitNum = frameMap.size() % eachThreadTaskNum == 0 ? (frameMap.size() / eachThreadTaskNum) : (frameMap.size() / eachThreadTaskNum + 1);
-                for (int i = 1; i <= splitNum; i++) {
-                    Map<Integer, BufferedImage> pre5EntryMap = frameMap.entrySet().stream().limit(5).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-                    Text2GifForkJoinTask task = new Text2GifForkJoinTask(pre5EntryMap, fontSizePt);
-                    taskList.add(task);
-                    pre5EntryMap.forEach((k, v) -> frameMap.remove(k));
-                    task.fork();
+    /**
+     * 编码线程：按帧顺序取出字符网格，增量渲染后写入 GIF，与后续帧的解码、转换同时进行
+     * <p>
+     * 渲染依赖上一帧的结果，只能按帧顺序串行进行；每一帧只重绘变化的单元格，变化区域同时交给编码器，
+     * 编码器只在该区域内比较相邻帧。
+     * 每一帧推迟到下一批到达后再写入，因为下一批开头的重复帧还要把延迟累加到这一帧上。
+     * 彩色模式下按窗口取出若干批，先用窗口内所有帧的颜色训练调色板，再渲染、写入这些帧；
+     * 颜色直接从字符网格统计，不需要渲染
+     *
+     * @param encoder    GIF编码器，黑白模式下调色板已设置
+     * @param pending    有序缓冲区，以 END_OF_FRAMES 结束
+     * @param outFile    输出文件
+     * @param fontSizePt 字体大小
+     * @return 编码的帧数
+     * @throws IOException 输出文件无法创建，或有帧编码、写入失败，此时输出文件不完整
+     */
+    private int encode(AnimatedGifEncoder encoder, BlockingQueue<FrameBatch> pending, File outFile, int fontSizePt) throws InterruptedException, IOException {
+        IncrementalRenderer renderer = this.createIncrementalRenderer(fontSizePt, fontSizePt / 2);
+        if (!encoder.start(outFile)) {
+            throw new IOException("无法创建GIF文件：" + outFile.getAbsolutePath());
+        }
+        // 各帧的量化和 LZW 编码在共享的 ForkJoinPool 中并行进行，按帧顺序写出
+        ForkJoinPool pool = ThreadPoolUtils.getForkJoinPool();
+        encoder.setEncodePool(pool, pool.getParallelism());
+        encoder.setStripSize(options.getLzwStripSize());
+        int windowFrames = options.isColored() ? PALETTE_WINDOW_FRAMES : 0;
+        int count = 0;
+        // 尚未写入的上一帧及其延迟，单位 1/100 秒
+        BufferedImage held = null;
+        Rectangle heldDirty = null;
+        int heldDelay = 0;
+        try {
+            FrameBatch batch = pending.take();
+            while (batch != END_OF_FRAMES) {
+                List<FrameBatch> window = new ArrayList<>();
+                int frames = 0;
+                do {
+                    window.add(batch);
+                    frames += batch.grids.length;
+                    batch = pending.take();
+                } while (frames < windowFrames && batch != END_OF_FRAMES);
+                if (windowFrames > 0) {
+                    // 上一个窗口的最后一帧在训练之前写入，仍使用上一个窗口的调色板
+                    heldDelay += window.get(0).carry;
+                    window.get(0).carry = 0;
+                    if (held != null && frames > 0) {
+                        this.addFrame(encoder, held, heldDirty, heldDelay);
+                        count++;
+                        held = null;
+                    }
+                    for (FrameBatch sample : window) {
+                        for (TextGrid grid : sample.grids) {
+                            renderer.countColors(grid, encoder::addPaletteSample);
+                        }
+                    }
+                    encoder.trainPalette();
+                }
+                for (FrameBatch frameBatch : window) {
+                    heldDelay += frameBatch.carry;
+                    for (int i = 0; i < frameBatch.grids.length; i++) {
+                        if (held != null) {
+                            this.addFrame(encoder, held, heldDirty, heldDelay);
+                            count++;
+                        }
+                        held = renderer.render(frameBatch.grids[i]);
+                        heldDirty = renderer.getDirty();
+                        heldDelay = frameBatch.delays[i];
+                    }
                 }
-                taskList.forEach(task -> resultMap.putAll(task.join()));
             }
-            return resultMap;
+            if (held != null) {
+                this.addFrame(encoder, held, heldDirty, heldDelay);
+                count++;
+            }
+        } catch (Throwable e) {
+            // 关闭输出文件
+            encoder.finish();
+            throw e;
+        }
+        if (!encoder.finish()) {
+            throw new IOException("GIF编码失败，输出文件不完整：" + outFile.getAbsolutePath());
+        }
+        return count;
+    }
+
+    /**
+     * 以指定延迟写入一帧
+     *
+     * @param dirty 与上一帧相比发生变化的区域
+     * @param delay 延迟，单位 1/100 秒
+     * @throws IOException 该帧或之前的帧编码、写入失败，编码器不再写入后续帧
+     */
+    private void addFrame(AnimatedGifEncoder encoder, BufferedImage frame, Rectangle dirty, int delay) throws IOException {
+        // 编码器的延迟单位为毫秒
+        encoder.setDelay(delay * 10);
+        if (!encoder.addFrame(frame, dirty)) {
+            throw new IOException("GIF帧编码失败！");
+        }
+    }
+
+    /**
+     * GIF 逐帧转换为文本，解码一帧、写出一帧
+     *
+     * @param gif        GIF图片
+     * @param sourcePath 源文件路径
+     * @param mode       文本输出模式
+     * @throws IOException IO异常
+     */
+    private void transfer2Text(GifDecoder.GifImage gif, String sourcePath, OutputMode mode) throws IOException {
+        File outFile = this.getOutputFile(sourcePath, mode);
+        try (TextGridWriter writer = new TextGridWriter(new FileOutputStream(outFile), mode)) {
+            for (int i = 0, frameNum = gif.getFrameCount(); i < frameNum; i++) {
+                this.transfer2Text(gif.getFrame(i), writer);
+            }
         }
+        log.info("GIF转换成功！生成文件路径：{}", outFile.getAbsolutePath());
+    }
+
+    /**
+     * 一批连续的输出帧的字符网格；相邻的相同帧已合并
+     */
+    @AllArgsConstructor
+    private static class FrameBatch {
+        private TextGrid[] grids;
+        /**
+         * 每个输出帧的延迟，单位 1/100 秒，包含合并掉的重复帧的延迟
+         */
+        private int[] delays;
+        /**
+         * 本批开头与上一批最后一帧相同的帧的延迟之和，累加到上一批的最后一帧上
+         */
+        private int carry;
     }
 }
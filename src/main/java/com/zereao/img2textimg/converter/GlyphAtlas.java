@@ -0,0 +1,204 @@
+package com.zereao.img2textimg.converter;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字形图集：每种字体大小只光栅化一次字符元素，之后直接把字形拷贝到输出图片的像素数组中，
+ * 绕开 Graphics.drawString() 的文字排版与光栅化流程
+ * <p>
+ * 字形以 "行程" 的形式保存：每个字形是若干 (dy, dx, len) 三元组，坐标相对于 drawString() 的基线起点
+ *
+ * @author Zereao
+ * @version 2019/05/07 15:02
+ */
+final class GlyphAtlas {
+    /**
+     * 字体名称
+     */
+    static final String FONT_NAME = "宋体";
+
+    /**
+     * 已生成的字形图集，key = 字体大小 + 字符元素
+     */
+    private static final Map<String, GlyphAtlas> CACHE = new ConcurrentHashMap<>();
+
+    private final String elements;
+    /**
+     * 每个字形的行程，(dy, dx, len) 三元组
+     */
+    private final int[][] runs;
+    /**
+     * 所有字形相对于基线的最小 dy、最大 dy，用于判断字形会覆盖哪些像素行
+     */
+    private int top, bottom;
+    /**
+     * 所有字形相对于基线的最小 dx、最大 dx，用于判断字形会覆盖哪些像素列
+     */
+    private int left, right;
+
+    private GlyphAtlas(String elements, int fontSize) {
+        this.elements = elements;
+        runs = this.rasterize(fontSize);
+    }
+
+    /**
+     * 获取字符元素在指定字体大小下的字形图集，不存在则生成
+     *
+     * @param elements 组成图案的基本字符元素
+     * @param fontSize 字体大小
+     * @return 字形图集
+     */
+    static GlyphAtlas of(String elements, int fontSize) {
+        return CACHE.computeIfAbsent(fontSize + elements, key -> new GlyphAtlas(elements, fontSize));
+    }
+
+    /**
+     * 将字符绘制到像素数组中，效果等同于 Graphics.drawString(String.valueOf(elements.charAt(glyph)), x, y)
+     *
+     * @param glyph 字形下标，即字符在字符元素中的下标
+     * @param x     基线起点 x
+     * @param y     基线起点 y
+     * @param dst   目标像素数组，TYPE_INT_RGB
+     * @param dstW  目标图片宽
+     * @param yFrom 只绘制 [yFrom, yTo) 像素行
+     * @param yTo   只绘制 [yFrom, yTo) 像素行
+     * @param rgb   字形颜色
+     */
+    void draw(int glyph, int x, int y, int[] dst, int dstW, int yFrom, int yTo, int rgb) {
+        this.draw(glyph, x, y, dst, dstW, 0, dstW, yFrom, yTo, rgb);
+    }
+
+    /**
+     * 将字符绘制到像素数组的 [xFrom, xTo) x [yFrom, yTo) 区域中，区域外的像素不变
+     *
+     * @param glyph 字形下标，即字符在字符元素中的下标
+     * @param x     基线起点 x
+     * @param y     基线起点 y
+     * @param dst   目标像素数组，TYPE_INT_RGB
+     * @param dstW  目标图片宽
+     * @param xFrom 只绘制 [xFrom, xTo) 像素列
+     * @param xTo   只绘制 [xFrom, xTo) 像素列
+     * @param yFrom 只绘制 [yFrom, yTo) 像素行
+     * @param yTo   只绘制 [yFrom, yTo) 像素行
+     * @param rgb   字形颜色
+     */
+    void draw(int glyph, int x, int y, int[] dst, int dstW, int xFrom, int xTo, int yFrom, int yTo, int rgb) {
+        int[] r = runs[glyph];
+        for (int i = 0, len = r.length; i < len; i += 3) {
+            int py = y + r[i];
+            if (py < yFrom || py >= yTo) {
+                continue;
+            }
+            int from = Math.max(x + r[i + 1], xFrom);
+            int to = Math.min(x + r[i + 1] + r[i + 2], xTo);
+            if (from < to) {
+                int offset = py * dstW;
+                Arrays.fill(dst, offset + from, offset + to, rgb);
+            }
+        }
+    }
+
+    /**
+     * 字形的像素数
+     *
+     * @param glyph 字形下标
+     * @return 像素数，空白字符为 0
+     */
+    int pixelCount(int glyph) {
+        int[] r = runs[glyph];
+        int count = 0;
+        for (int i = 2; i < r.length; i += 3) {
+            count += r[i];
+        }
+        return count;
+    }
+
+    /**
+     * 字形是否不含任何像素，例如空格
+     *
+     * @param glyph 字形下标
+     * @return 不含像素返回 true
+     */
+    boolean isBlank(int glyph) {
+        return runs[glyph].length == 0;
+    }
+
+    /**
+     * @return 所有字形相对于基线的最小 dy
+     */
+    int getTop() {
+        return top;
+    }
+
+    /**
+     * @return 所有字形相对于基线的最大 dy
+     */
+    int getBottom() {
+        return bottom;
+    }
+
+    /**
+     * @return 所有字形相对于基线的最小 dx
+     */
+    int getLeft() {
+        return left;
+    }
+
+    /**
+     * @return 所有字形相对于基线的最大 dx
+     */
+    int getRight() {
+        return right;
+    }
+
+    /**
+     * 将所有字符元素绘制到一张图集上，再逐行提取每个字形的行程
+     */
+    private int[][] rasterize(int fontSize) {
+        int count = elements.length();
+        // 预留足够的边距，字形可能超出字体度量的范围
+        int pad = fontSize * 2;
+        int tileW = pad * 2, tileH = pad * 2;
+        BufferedImage atlas = new BufferedImage(tileW * count, tileH, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics graphics = atlas.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.setFont(new Font(FONT_NAME, Font.PLAIN, fontSize));
+        for (int i = 0; i < count; i++) {
+            graphics.drawString(String.valueOf(elements.charAt(i)), i * tileW + pad, pad);
+        }
+        graphics.dispose();
+        byte[] pixels = ((DataBufferByte) atlas.getRaster().getDataBuffer()).getData();
+        int atlasW = atlas.getWidth();
+        int[][] result = new int[count][];
+        int[] buf = new int[tileW * tileH * 3];
+        for (int i = 0; i < count; i++) {
+            int n = 0;
+            for (int ty = 0; ty < tileH; ty++) {
+                int rowStart = ty * atlasW + i * tileW;
+                for (int tx = 0; tx < tileW; tx++) {
+                    if (pixels[rowStart + tx] == 0) {
+                        continue;
+                    }
+                    int start = tx;
+                    while (tx < tileW && pixels[rowStart + tx] != 0) {
+                        tx++;
+                    }
+                    top = Math.min(top, ty - pad);
+                    bottom = Math.max(bottom, ty - pad);
+                    left = Math.min(left, start - pad);
+                    right = Math.max(right, tx - 1 - pad);
+                    buf[n++] = ty - pad;
+                    buf[n++] = start - pad;
+                    buf[n++] = tx - start;
+                }
+            }
+            result[i] = Arrays.copyOf(buf, n);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,157 @@
+package com.zereao.img2textimg.converter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 字符网格映射：原图被均分为 rows x cols 个矩形区域，每个单元格取对应区域内所有像素的平均灰度（彩色模式下还有平均颜色）
+ * <p>
+ * 不同行区间互不重叠，可以由多个线程分别计算；
+ * 分带模式下图片只是原图的一个水平条带，只对应字符网格中的 [rowBase, rowBase + 条带行数) 行
+ *
+ * @author Zereao
+ * @version 2019/05/20 10:12
+ */
+final class GridMapper {
+    private final TextGrid grid;
+    private final LuminanceKernel kernel;
+    /**
+     * 灰度值 -> 字符元素下标 查找表
+     */
+    private final byte[] table;
+    private final int width;
+    private final int[] xBounds;
+    private final int[] yBounds;
+    /**
+     * 图片第一行像素对应的字符网格行号
+     */
+    private final int rowBase;
+
+    /**
+     * @param img   BufferedImage图片
+     * @param grid  目标字符网格
+     * @param table 灰度值 -> 字符元素下标 查找表
+     */
+    GridMapper(BufferedImage img, TextGrid grid, byte[] table) {
+        this(img, grid, table, 0, grid.getHeight());
+    }
+
+    /**
+     * @param img     原图的一个水平条带
+     * @param grid    目标字符网格
+     * @param table   灰度值 -> 字符元素下标 查找表
+     * @param rowFrom 条带对应的起始行（包含）
+     * @param rowTo   条带对应的结束行（不包含）
+     */
+    GridMapper(BufferedImage img, TextGrid grid, byte[] table, int rowFrom, int rowTo) {
+        this.grid = grid;
+        this.kernel = LuminanceKernel.of(img);
+        this.table = table;
+        this.width = img.getWidth();
+        this.xBounds = cellBounds(img.getWidth(), grid.getWidth());
+        this.yBounds = cellBounds(img.getHeight(), rowTo - rowFrom);
+        this.rowBase = rowFrom;
+    }
+
+    /**
+     * 计算 [rowFrom, rowTo) 行单元格，每计算完一行就通知监听器
+     *
+     * @param rowFrom  起始行（包含）
+     * @param rowTo    结束行（不包含）
+     * @param listener 行监听器，可以为 null
+     * @throws IOException 监听器抛出的IO异常
+     */
+    void mapRows(int rowFrom, int rowTo, TextGrid.RowListener listener) throws IOException {
+        int width = this.width;
+        int cols = grid.getWidth();
+        byte[] cells = grid.getCells();
+        int[] colors = grid.getColors();
+        boolean colored = colors != null;
+        int[] pixelRow = new int[width];
+        // 当前行单元格覆盖的像素行，按列累加的灰度值；彩色模式下同时按列累加 R、G、B
+        int[] columnSum = new int[width];
+        int[] redSum = colored ? new int[width] : null;
+        int[] greenSum = colored ? new int[width] : null;
+        int[] blueSum = colored ? new int[width] : null;
+        for (int r = rowFrom; r < rowTo; r++) {
+            Arrays.fill(columnSum, 0);
+            if (colored) {
+                Arrays.fill(redSum, 0);
+                Arrays.fill(greenSum, 0);
+                Arrays.fill(blueSum, 0);
+            }
+            int y0 = yBounds[r - rowBase], y1 = Math.max(yBounds[r - rowBase + 1], y0 + 1);
+            for (int y = y0; y < y1; y++) {
+                if (colored) {
+                    // 灰度与颜色在同一次遍历中累加
+                    kernel.readRgbRow(y, pixelRow);
+                    for (int x = 0; x < width; x++) {
+                        int red = (pixelRow[x] >> 16) & 0xff, green = (pixelRow[x] >> 8) & 0xff, blue = pixelRow[x] & 0xff;
+                        columnSum[x] += LuminanceKernel.gray(red, green, blue);
+                        redSum[x] += red;
+                        greenSum[x] += green;
+                        blueSum[x] += blue;
+                    }
+                } else {
+                    kernel.readGrayRow(y, pixelRow);
+                    for (int x = 0; x < width; x++) {
+                        columnSum[x] += pixelRow[x];
+                    }
+                }
+            }
+            int offset = grid.offset(r);
+            for (int c = 0; c < cols; c++) {
+                int x0 = xBounds[c], x1 = Math.max(xBounds[c + 1], x0 + 1);
+                long sum = 0;
+                for (int x = x0; x < x1; x++) {
+                    sum += columnSum[x];
+                }
+                long area = (long) (x1 - x0) * (y1 - y0);
+                cells[offset + c] = table[(int) ((sum + area / 2) / area)];
+                if (colored) {
+                    long red = 0, green = 0, blue = 0;
+                    for (int x = x0; x < x1; x++) {
+                        red += redSum[x];
+                        green += greenSum[x];
+                        blue += blueSum[x];
+                    }
+                    colors[offset + c] = (int) ((red + area / 2) / area) << 16
+                            | (int) ((green + area / 2) / area) << 8
+                            | (int) ((blue + area / 2) / area);
+                }
+            }
+            if (listener != null) {
+                listener.onRow(grid, r);
+            }
+        }
+    }
+
+    /**
+     * 无监听器地计算 [rowFrom, rowTo) 行单元格，用于并行条带
+     */
+    void mapRows(int rowFrom, int rowTo) {
+        try {
+            this.mapRows(rowFrom, rowTo, null);
+        } catch (IOException e) {
+            // 没有监听器，不会出现IO异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 将长度 length 均分为 count 段，返回每段的起点，最后一项为 length
+     * 当 count 大于 length 时，相邻的段可能起点相同，使用时需保证每段至少包含 1 个像素
+     *
+     * @param length 像素长度
+     * @param count  段数
+     * @return 长度为 count + 1 的分段边界数组
+     */
+    private static int[] cellBounds(int length, int count) {
+        int[] bounds = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            bounds[i] = (int) ((long) i * length / count);
+        }
+        return bounds;
+    }
+}
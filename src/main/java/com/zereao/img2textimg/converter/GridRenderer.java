@@ -0,0 +1,107 @@
+package com.zereao.img2textimg.converter;
+
+import java.util.Arrays;
+
+/**
+ * 字符网格渲染：将字符网格通过字形图集绘制到 TYPE_INT_RGB 像素数组中
+ * <p>
+ * 按输出图片的像素行区间绘制，每个区间只写入自己的像素行，不同区间可以由多个线程分别绘制，
+ * 区间内按行优先顺序绘制所有可能覆盖到该区间的单元格，结果与整体串行绘制完全一致；
+ * 像素数组可以只保存输出图片的一个水平条带，由 originY 指定条带第一行的行号
+ *
+ * @author Zereao
+ * @version 2019/05/20 10:45
+ */
+final class GridRenderer {
+    private final TextGrid grid;
+    private final GlyphAtlas atlas;
+    private final int width;
+    private final int pitch;
+    private final int background;
+    private final int foreground;
+
+    /**
+     * @param grid       字符网格
+     * @param atlas      字形图集
+     * @param width      输出图片宽
+     * @param pitch      每个单元格的像素边长
+     * @param background 背景色
+     * @param foreground 非彩色模式下的前景色
+     */
+    GridRenderer(TextGrid grid, GlyphAtlas atlas, int width, int pitch, int background, int foreground) {
+        this.grid = grid;
+        this.atlas = atlas;
+        this.width = width;
+        this.pitch = pitch;
+        this.background = background;
+        this.foreground = foreground;
+    }
+
+    /**
+     * @return 单元格行数为 rows 时，输出图片的前多少像素行已经可以绘制，即不会再被后续单元格行覆盖
+     */
+    int readyRows(int rows) {
+        return rows >= grid.getHeight() ? grid.getHeight() * pitch : Math.max(0, rows * pitch + atlas.getTop());
+    }
+
+    /**
+     * 绘制输出图片的 [yFrom, yTo) 像素行
+     *
+     * @param pixels  像素数组
+     * @param originY 像素数组第一行在输出图片中的行号
+     * @param yFrom   起始像素行（包含）
+     * @param yTo     结束像素行（不包含）
+     */
+    void renderRows(int[] pixels, int originY, int yFrom, int yTo) {
+        int width = this.width, pitch = this.pitch;
+        Arrays.fill(pixels, (yFrom - originY) * width, (yTo - originY) * width, background);
+        // 字形可能超出单元格的范围，找出所有可能覆盖到 [yFrom, yTo) 的单元格行
+        int rowFrom = Math.max(0, Math.floorDiv(yFrom - atlas.getBottom(), pitch));
+        int rowTo = Math.min(grid.getHeight(), Math.floorDiv(yTo - 1 - atlas.getTop(), pitch) + 1);
+        byte[] cells = grid.getCells();
+        // 彩色模式下使用单元格的平均颜色
+        int[] colors = grid.getColors();
+        for (int i = rowFrom; i < rowTo; i++) {
+            for (int j = 0, lenOfW = grid.getWidth(), offset = grid.offset(i); j < lenOfW; j++) {
+                int glyph = cells[offset + j];
+                // 空白字符不含任何像素，直接跳过
+                if (!atlas.isBlank(glyph)) {
+                    int rgb = colors == null ? foreground : 0xFF000000 | colors[offset + j];
+                    atlas.draw(glyph, j * pitch, i * pitch - originY, pixels, width, yFrom - originY, yTo - originY, rgb);
+                }
+            }
+        }
+    }
+
+    /**
+     * 重绘整张输出图片中 [xFrom, xTo) x [yFrom, yTo) 区域内的像素，区域外的像素不变；
+     * 区域内按行优先顺序绘制所有可能覆盖到该区域的单元格，结果与整体绘制完全一致
+     *
+     * @param pixels 整张输出图片的像素数组
+     * @param xFrom  起始像素列（包含）
+     * @param xTo    结束像素列（不包含）
+     * @param yFrom  起始像素行（包含）
+     * @param yTo    结束像素行（不包含）
+     */
+    void renderRect(int[] pixels, int xFrom, int xTo, int yFrom, int yTo) {
+        int width = this.width, pitch = this.pitch;
+        for (int y = yFrom; y < yTo; y++) {
+            Arrays.fill(pixels, y * width + xFrom, y * width + xTo, background);
+        }
+        int rowFrom = Math.max(0, Math.floorDiv(yFrom - atlas.getBottom(), pitch));
+        int rowTo = Math.min(grid.getHeight(), Math.floorDiv(yTo - 1 - atlas.getTop(), pitch) + 1);
+        int colFrom = Math.max(0, Math.floorDiv(xFrom - atlas.getRight(), pitch));
+        int colTo = Math.min(grid.getWidth(), Math.floorDiv(xTo - 1 - atlas.getLeft(), pitch) + 1);
+        byte[] cells = grid.getCells();
+        int[] colors = grid.getColors();
+        for (int i = rowFrom; i < rowTo; i++) {
+            for (int j = colFrom, offset = grid.offset(i); j < colTo; j++) {
+                int glyph = cells[offset + j];
+                if (!atlas.isBlank(glyph)) {
+                    int rgb = colors == null ? foreground : 0xFF000000 | colors[offset + j];
+                    atlas.draw(glyph, j * pitch, i * pitch, pixels, width, xFrom, xTo, yFrom, yTo, rgb);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.zereao.img2textimg.converter;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * 帧间增量渲染：保留上一帧的字符网格与输出像素，新的一帧只重绘字形或颜色发生变化的单元格所覆盖的区域，
+ * 渲染开销与画面的变化量成正比，而不是与画布大小成正比
+ * <p>
+ * 每一帧输出一张新的图片（拷贝上一帧的像素后局部重绘），已经输出的图片不会再被修改；只能按帧顺序串行调用
+ *
+ * @author Zereao
+ * @version 2019/06/24 10:18
+ */
+final class IncrementalRenderer {
+    private final GlyphAtlas atlas;
+    private final int pitch;
+    private final int background;
+    private final int foreground;
+    /**
+     * 上一帧的字符网格与输出像素
+     */
+    private TextGrid previous;
+    private int[] previousPixels;
+    /**
+     * 最近一帧相对于上一帧发生变化的区域
+     */
+    private Rectangle dirty;
+
+    /**
+     * @param atlas      字形图集
+     * @param pitch      每个单元格的像素边长
+     * @param background 背景色
+     * @param foreground 非彩色模式下的前景色
+     */
+    IncrementalRenderer(GlyphAtlas atlas, int pitch, int background, int foreground) {
+        this.atlas = atlas;
+        this.pitch = pitch;
+        this.background = background;
+        this.foreground = foreground;
+    }
+
+    /**
+     * 渲染下一帧
+     *
+     * @param grid 字符网格
+     * @return 渲染结果，TYPE_INT_RGB
+     */
+    BufferedImage render(TextGrid grid) {
+        int cols = grid.getWidth(), rows = grid.getHeight();
+        int width = cols * pitch, height = rows * pitch;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        GridRenderer renderer = new GridRenderer(grid, atlas, width, pitch, background, foreground);
+        if (previous == null || previous.getWidth() != cols || previous.getHeight() != rows) {
+            renderer.renderRows(pixels, 0, 0, height);
+            dirty = new Rectangle(0, 0, width, height);
+        } else {
+            System.arraycopy(previousPixels, 0, pixels, 0, pixels.length);
+            dirty = null;
+            for (int i = 0; i < rows; i++) {
+                int offset = grid.offset(i);
+                for (int j = 0; j < cols; j++) {
+                    if (this.sameCell(grid, offset + j)) {
+                        continue;
+                    }
+                    // 一段连续变化的单元格，重绘新旧字形可能覆盖的区域
+                    int from = j;
+                    while (j + 1 < cols && !this.sameCell(grid, offset + j + 1)) {
+                        j++;
+                    }
+                    int xFrom = Math.max(0, from * pitch + atlas.getLeft());
+                    int xTo = Math.min(width, j * pitch + atlas.getRight() + 1);
+                    int yFrom = Math.max(0, i * pitch + atlas.getTop());
+                    int yTo = Math.min(height, i * pitch + atlas.getBottom() + 1);
+                    if (xFrom < xTo && yFrom < yTo) {
+                        renderer.renderRect(pixels, xFrom, xTo, yFrom, yTo);
+                        Rectangle rect = new Rectangle(xFrom, yFrom, xTo - xFrom, yTo - yFrom);
+                        dirty = dirty == null ? rect : dirty.union(rect);
+                    }
+                }
+            }
+            if (dirty == null) {
+                dirty = new Rectangle();
+            }
+        }
+        previous = grid;
+        previousPixels = pixels;
+        return image;
+    }
+
+    /**
+     * @return 最近一帧相对于上一帧发生变化的区域，区域外的像素与上一帧相同；没有变化时为空矩形
+     */
+    Rectangle getDirty() {
+        return dirty;
+    }
+
+    /**
+     * 统计一帧渲染结果中的颜色及其像素数，不实际渲染：字形不做抗锯齿，像素只有背景色和各单元格的颜色
+     * <p>
+     * 字形超出单元格或画布的部分也计入，像素数是近似值，颜色是准确的
+     *
+     * @param grid    字符网格
+     * @param counter 颜色计数回调
+     */
+    void countColors(TextGrid grid, ColorCounter counter) {
+        byte[] cells = grid.getCells();
+        int[] colors = grid.getColors();
+        long glyphPixels = 0;
+        for (int i = 0, rows = grid.getHeight(); i < rows; i++) {
+            for (int j = 0, cols = grid.getWidth(), offset = grid.offset(i); j < cols; j++) {
+                int pixels = atlas.pixelCount(cells[offset + j]);
+                if (pixels > 0) {
+                    counter.count(colors == null ? foreground : colors[offset + j], pixels);
+                    glyphPixels += pixels;
+                }
+            }
+        }
+        long total = (long) grid.getWidth() * pitch * grid.getHeight() * pitch;
+        counter.count(background, (int) Math.max(1, Math.min(Integer.MAX_VALUE, total - glyphPixels)));
+    }
+
+    /**
+     * 颜色计数回调
+     */
+    interface ColorCounter {
+        /**
+         * @param rgb    颜色
+         * @param pixels 该颜色的像素数
+         */
+        void count(int rgb, int pixels);
+    }
+
+    private boolean sameCell(TextGrid grid, int index) {
+        if (grid.getCells()[index] != previous.getCells()[index]) {
+            return false;
+        }
+        int[] colors = grid.getColors();
+        return colors == null || colors[index] == previous.getColors()[index];
+    }
+}
@@ -1,42 +1,229 @@
 package com.zereao.img2textimg.converter;
 
 import com.zereao.img2textimg.utils.ThreadPoolUtils;
-import net.coobird.thumbnailator.Thumbnails;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.CountDownLatch;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author Zereao
  * @version 2019/04/12 14:45
  */
 public class JPEG2TextImgConverter extends AbstractImgConverter {
+    /**
+     * 原图最短边超过该值时，等比例缩放至最长边为该值后再转换
+     */
+    private static final int MAX_LINE = 500;
+
+    public JPEG2TextImgConverter(ConvertOptions options) {
+        super(options);
+        int[] fontSizes = options.getFontSizes();
+        if (!options.getOutputMode().isText() && (fontSizes == null || fontSizes.length <= 0)) {
+            throw new IllegalArgumentException("至少需要指定一个字体大小！");
+        }
+    }
 
     @Override
     public void transfer2TextImg(InputStream source, String sourcePath) throws IOException {
-        BufferedImage bi = ImageIO.read(source);
-        int oldWidth = bi.getWidth();
-        int oldHeight = bi.getHeight();
-        int maxLine = 500;
-        if (Math.min(oldHeight, oldWidth) > maxLine) {
-            // 等比例缩放至 最长边为1000
-            bi = Thumbnails.of(bi).size(maxLine, maxLine).asBufferedImage();
-            log.info("将文件[{}]等比例压缩值最长边为{}px，保存路径为：{}", sourcePath, maxLine,
-                    this.getCompressedFile(bi, sourcePath, maxLine).getAbsolutePath());
-        }
-        CountDownLatch latch = new CountDownLatch(3);
-        for (int fontSize = 10; fontSize <= 14; fontSize++) {
-            ThreadPoolUtils.execute(new Text2ImgTask(this.transfer2CharArray(bi), sourcePath, fontSize, latch));
-            log.info("开始转换：fontSize = {}，zoom = {}，文件保存路径为：{}",
-                    fontSize, fontSize / 2, super.getOutputFile(sourcePath, fontSize));
+        try (ImageInputStream iis = ImageIO.createImageInputStream(source)) {
+            this.transfer2TextImg(iis, sourcePath);
+        }
+    }
+
+    @Override
+    public void transfer2TextImg(Path source) throws IOException {
+        ImageInputStream mapped = ByteBufferImageInputStream.map(source);
+        // 超过 2GB 的文件无法映射，退化为随机访问文件
+        try (ImageInputStream iis = mapped != null ? mapped : ImageIO.createImageInputStream(source.toFile())) {
+            this.transfer2TextImg(iis, source.toAbsolutePath().toString());
         }
+    }
+
+    private void transfer2TextImg(ImageInputStream iis, String sourcePath) throws IOException {
+        ImageReader reader = this.getImageReader(iis, sourcePath);
         try {
-            latch.await();
-        } catch (InterruptedException e) {
-            log.error(e, "发生异常：CountDownLatch被中断啦~");
+            // 分带处理时需要多次读取同一张图片的不同区域，不能只向前读取
+            reader.setInput(iis, false, true);
+            this.transfer2TextImg(reader, sourcePath);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * 先根据原图尺寸确定目标字符网格，再按网格需要的分辨率降采样解码，原图从不以全分辨率载入内存
+     *
+     * @param reader     已设置输入的 ImageReader
+     * @param sourcePath 源文件路径
+     * @throws IOException IO异常
+     */
+    private void transfer2TextImg(ImageReader reader, String sourcePath) throws IOException {
+        int oldWidth = reader.getWidth(0);
+        int oldHeight = reader.getHeight(0);
+        double scale = 1;
+        if (Math.min(oldHeight, oldWidth) > MAX_LINE) {
+            // 等比例缩放至 最长边为 MAX_LINE
+            scale = (double) MAX_LINE / Math.max(oldHeight, oldWidth);
+        }
+        OutputMode mode = options.getOutputMode();
+        int cols = this.gridCols(oldWidth * scale);
+        int rows = this.gridRows(oldHeight * scale, mode.isText());
+        // 降采样后每个单元格仍保留约 CELL_INTERVAL x CELL_INTERVAL 个像素用于求平均
+        int subsampling = Math.max(1, Math.min(oldWidth / (cols * CELL_INTERVAL), oldHeight / (rows * CELL_INTERVAL)));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        if (this.needTiling(oldWidth, oldHeight, subsampling, cols, rows)) {
+            this.transfer2TextImgTiled(reader, param, sourcePath, cols, rows);
+            return;
+        }
+        BufferedImage bi = reader.read(0, param);
+        log.info("文件[{}]原图为{}x{}px，按 1/{} 降采样解码为{}x{}px，字符网格为{}x{}",
+                sourcePath, oldWidth, oldHeight, subsampling, bi.getWidth(), bi.getHeight(), cols, rows);
+        if (mode.isText()) {
+            File outFile = this.getOutputFile(sourcePath, mode);
+            try (TextGridWriter writer = new TextGridWriter(new FileOutputStream(outFile), mode)) {
+                this.transfer2Text(bi, cols, rows, writer);
+            }
+            log.info("转换成功！生成文件路径：{}", outFile.getAbsolutePath());
+            return;
+        }
+        // 只解码、转换一次，所有字体大小共用同一个只读的字符网格
+        TextGrid grid = this.transfer2TextGrid(bi, cols, rows);
+        this.renderAll(grid, sourcePath, options.getFontSizes());
+    }
+
+    /**
+     * 降采样解码后的原图，或者最大字体大小下生成的字符画图片，像素数超过阈值时需要分带处理
+     */
+    private boolean needTiling(int width, int height, int subsampling, int cols, int rows) {
+        long decoded = (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+        long output = 0;
+        if (!options.getOutputMode().isText()) {
+            int maxPitch = CELL_INTERVAL * (Arrays.stream(options.getFontSizes()).max().orElse(0) / 2);
+            output = (long) cols * rows * maxPitch * maxPitch;
+        }
+        return Math.max(decoded, output) > options.getTileThreshold();
+    }
+
+    /**
+     * 分带处理：每次只解码覆盖 bandRows 行单元格的原图区域，转换后立即渲染并写出这些行，再解码下一个条带，
+     * 峰值内存只与条带高度有关，与原图大小无关。图片输出统一使用流式 PNG 编码
+     *
+     * @param reader     已设置输入的 ImageReader
+     * @param param      已设置降采样的读取参数
+     * @param sourcePath 源文件路径
+     * @param cols       字符网格列数
+     * @param rows       字符网格行数
+     * @throws IOException IO异常
+     */
+    private void transfer2TextImgTiled(ImageReader reader, ImageReadParam param, String sourcePath, int cols, int rows) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int bandRows = Math.max(1, options.getBandRows());
+        OutputMode mode = options.getOutputMode();
+        TextGrid grid = this.createTextGrid(cols, rows);
+        log.info("文件[{}]原图为{}x{}px，分带处理，每个条带{}行，字符网格为{}x{}", sourcePath, width, height, bandRows, cols, rows);
+        if (mode.isText()) {
+            File outFile = this.getOutputFile(sourcePath, mode);
+            try (TextGridWriter writer = new TextGridWriter(new FileOutputStream(outFile), mode)) {
+                writer.beginFrame();
+                for (int rowFrom = 0; rowFrom < rows; rowFrom += bandRows) {
+                    int rowTo = Math.min(rows, rowFrom + bandRows);
+                    this.transfer2TextGrid(this.readBand(reader, param, rowFrom, rowTo, rows), grid, rowFrom, rowTo, writer::writeRow);
+                }
+                writer.endFrame();
+            }
+            log.info("转换成功！生成文件路径：{}", outFile.getAbsolutePath());
+            return;
+        }
+        int[] fontSizes = options.getFontSizes();
+        String pngPath = sourcePath.substring(0, sourcePath.lastIndexOf(".")) + ".png";
+        BandImageWriter[] writers = new BandImageWriter[fontSizes.length];
+        try {
+            for (int i = 0; i < fontSizes.length; i++) {
+                File outImg = this.getOutputFile(pngPath, fontSizes[i]);
+                writers[i] = this.createBandImageWriter(grid, fontSizes[i], outImg);
+                log.info("开始转换：fontSize = {}，zoom = {}，文件保存路径为：{}", fontSizes[i], fontSizes[i] / 2, outImg);
+            }
+            for (int rowFrom = 0; rowFrom < rows; rowFrom += bandRows) {
+                int rowTo = Math.min(rows, rowFrom + bandRows);
+                this.transfer2TextGrid(this.readBand(reader, param, rowFrom, rowTo, rows), grid, rowFrom, rowTo, null);
+                this.writeReadyRows(writers, rowTo);
+            }
+        } finally {
+            for (BandImageWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+        log.info("转换成功！共生成{}个文件", fontSizes.length);
+    }
+
+    /**
+     * 各字体大小的输出互不依赖，在共享的 ForkJoinPool 中并行绘制、压缩并写出
+     */
+    private void writeReadyRows(BandImageWriter[] writers, int mappedRows) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(writers.length);
+        for (BandImageWriter writer : writers) {
+            tasks.add(() -> {
+                writer.writeReadyRows(mappedRows);
+                return null;
+            });
+        }
+        for (Future<Void> future : ThreadPoolUtils.getForkJoinPool().invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("分带写出被中断！");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * 解码覆盖 [rowFrom, rowTo) 行单元格的原图区域，原图按行均分给 rows 行单元格
+     */
+    private BufferedImage readBand(ImageReader reader, ImageReadParam param, int rowFrom, int rowTo, int rows) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int y0 = (int) ((long) rowFrom * height / rows);
+        int y1 = Math.max((int) ((long) rowTo * height / rows), y0 + 1);
+        param.setSourceRegion(new Rectangle(0, y0, width, y1 - y0));
+        return reader.read(0, param);
+    }
+
+    /**
+     * @param iis        图片输入流
+     * @param sourcePath 源文件路径
+     * @return 能够解码该图片的 ImageReader
+     * @throws IOException 没有可用的 ImageReader
+     */
+    private ImageReader getImageReader(ImageInputStream iis, String sourcePath) throws IOException {
+        Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("无法解码的图片格式！sourcePath = " + sourcePath);
         }
+        return readers.next();
     }
 }
@@ -0,0 +1,208 @@
+package com.zereao.img2textimg.converter;
+
+import java.awt.image.*;
+
+/**
+ * 灰度计算内核：直接读取 BufferedImage 底层 Raster 的 DataBuffer，避免逐像素调用 getRGB() 经过 ColorModel 转换
+ * <p>
+ * 支持 TYPE_INT_RGB、TYPE_INT_ARGB、TYPE_3BYTE_BGR、TYPE_BYTE_GRAY，其他类型退化为按行调用 getRGB()
+ *
+ * @author Zereao
+ * @version 2019/05/06 10:21
+ */
+final class LuminanceKernel {
+    /**
+     * 灰度系数，16位定点小数，与原先的 0.299 * R + 0.578 * G + 0.114 * B 保持一致
+     */
+    private static final int R_WEIGHT = Math.round(0.299f * 65536);
+    private static final int G_WEIGHT = Math.round(0.578f * 65536);
+    private static final int B_WEIGHT = Math.round(0.114f * 65536);
+
+    private final BufferedImage img;
+    private final int width;
+    private final int type;
+    /**
+     * TYPE_INT_* 的像素数组
+     */
+    private int[] intData;
+    /**
+     * TYPE_3BYTE_BGR、TYPE_BYTE_GRAY 的像素数组
+     */
+    private byte[] byteData;
+    /**
+     * 坐标 (0, 0) 在像素数组中的下标
+     */
+    private int base;
+    private int scanlineStride;
+    private int pixelStride = 1;
+    private int redOffset, greenOffset, blueOffset;
+    /**
+     * TYPE_BYTE_GRAY 的样本值到 sRGB 的映射表，0xRRGGBB；样本是线性灰度，需要经过 ColorModel 转换才与 getRGB() 一致
+     */
+    private int[] grayRgb;
+    /**
+     * TYPE_BYTE_GRAY 的样本值到灰度值的映射表
+     */
+    private int[] grayLevel;
+
+    private LuminanceKernel(BufferedImage img) {
+        this.img = img;
+        this.width = img.getWidth();
+        this.type = this.resolveType(img);
+    }
+
+    /**
+     * 为图片创建灰度计算内核
+     *
+     * @param img BufferedImage图片
+     * @return 灰度计算内核
+     */
+    static LuminanceKernel of(BufferedImage img) {
+        return new LuminanceKernel(img);
+    }
+
+    /**
+     * 根据 RGB 计算灰度值
+     *
+     * @param rgb 像素值，忽略 Alpha 通道
+     * @return 灰度值，范围 0 ~ 253
+     */
+    static int gray(int rgb) {
+        return gray((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+    }
+
+    static int gray(int red, int green, int blue) {
+        return (R_WEIGHT * red + G_WEIGHT * green + B_WEIGHT * blue + 0x8000) >>> 16;
+    }
+
+    /**
+     * 读取第 y 行所有像素的灰度值
+     *
+     * @param y    行号
+     * @param gray 灰度值输出数组，长度不小于图片宽度
+     */
+    void readGrayRow(int y, int[] gray) {
+        int w = width;
+        int i = base + y * scanlineStride;
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                int[] ints = intData;
+                for (int x = 0; x < w; x++) {
+                    gray[x] = gray(ints[i + x]);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                byte[] bytes = byteData;
+                for (int x = 0, ps = pixelStride; x < w; x++, i += ps) {
+                    gray[x] = gray(bytes[i + redOffset] & 0xff, bytes[i + greenOffset] & 0xff, bytes[i + blueOffset] & 0xff);
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                byte[] grays = byteData;
+                int[] levels = grayLevel;
+                for (int x = 0; x < w; x++) {
+                    gray[x] = levels[grays[i + x] & 0xff];
+                }
+                break;
+            default:
+                img.getRGB(0, y, w, 1, gray, 0, w);
+                for (int x = 0; x < w; x++) {
+                    gray[x] = gray(gray[x]);
+                }
+        }
+    }
+
+    /**
+     * 读取第 y 行所有像素的 RGB 值，用于彩色模式下在同一次遍历中同时计算灰度和颜色
+     *
+     * @param y   行号
+     * @param rgb RGB 输出数组，0xRRGGBB，长度不小于图片宽度
+     */
+    void readRgbRow(int y, int[] rgb) {
+        int w = width;
+        int i = base + y * scanlineStride;
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                System.arraycopy(intData, i, rgb, 0, w);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                byte[] bytes = byteData;
+                for (int x = 0, ps = pixelStride; x < w; x++, i += ps) {
+                    rgb[x] = (bytes[i + redOffset] & 0xff) << 16 | (bytes[i + greenOffset] & 0xff) << 8 | bytes[i + blueOffset] & 0xff;
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                byte[] grays = byteData;
+                int[] rgbs = grayRgb;
+                for (int x = 0; x < w; x++) {
+                    rgb[x] = rgbs[grays[i + x] & 0xff];
+                }
+                break;
+            default:
+                img.getRGB(0, y, w, 1, rgb, 0, w);
+        }
+    }
+
+    /**
+     * 判断是否可以直接访问像素数组，可以则记录数组及其布局，否则返回 TYPE_CUSTOM 以使用 getRGB()
+     */
+    private int resolveType(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+        int imgType = img.getType();
+        switch (imgType) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+                    SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+                    intData = ((DataBufferInt) db).getData();
+                    scanlineStride = sppsm.getScanlineStride();
+                    base = db.getOffset() + sppsm.getOffset(tx, ty);
+                    return imgType;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if (db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+                    ComponentSampleModel csm = (ComponentSampleModel) sm;
+                    int[] bandOffsets = csm.getBandOffsets();
+                    byteData = ((DataBufferByte) db).getData();
+                    scanlineStride = csm.getScanlineStride();
+                    pixelStride = csm.getPixelStride();
+                    base = db.getOffset() + ty * scanlineStride + tx * pixelStride;
+                    if (imgType == BufferedImage.TYPE_3BYTE_BGR) {
+                        redOffset = bandOffsets[0];
+                        greenOffset = bandOffsets[1];
+                        blueOffset = bandOffsets[2];
+                    } else {
+                        base += bandOffsets[0];
+                        this.buildGrayTables(img.getColorModel());
+                    }
+                    return imgType;
+                }
+                break;
+            default:
+        }
+        return BufferedImage.TYPE_CUSTOM;
+    }
+
+    /**
+     * 按 ColorModel 预先计算 256 个灰度样本对应的 sRGB 值和灰度值；与 getRGB() 一样按像素数组元素转换，
+     * ComponentColorModel.getRGB(int) 的舍入与之略有不同
+     */
+    private void buildGrayTables(ColorModel cm) {
+        grayRgb = new int[256];
+        grayLevel = new int[256];
+        byte[] sample = new byte[1];
+        for (int v = 0; v < 256; v++) {
+            sample[0] = (byte) v;
+            grayRgb[v] = cm.getRGB(sample) & 0xffffff;
+            grayLevel[v] = gray(grayRgb[v]);
+        }
+    }
+}
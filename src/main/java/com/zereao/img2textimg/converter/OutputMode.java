@@ -0,0 +1,47 @@
+package com.zereao.img2textimg.converter;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 输出模式
+ *
+ * @author Zereao
+ * @version 2019/05/13 16:20
+ */
+@Getter
+@AllArgsConstructor
+public enum OutputMode {
+    /**
+     * 字符画图片，与源文件格式相同
+     */
+    IMAGE("image", null),
+    /**
+     * 纯文本
+     */
+    TEXT("text", "txt"),
+    /**
+     * 带 ANSI 转义序列的文本，用于在终端中显示
+     */
+    ANSI("ansi", "ans"),
+    /**
+     * HTML 页面，彩色模式下每段相同颜色的字符使用一个 span
+     */
+    HTML("html", "html");
+
+    /**
+     * 写入输出文件名中的模式名称
+     */
+    private final String name;
+    /**
+     * 输出文件扩展名，为 null 时与源文件相同
+     */
+    private final String extension;
+
+    /**
+     * @return 是否直接输出文本，不进行光栅化
+     */
+    public boolean isText() {
+        return extension != null;
+    }
+}
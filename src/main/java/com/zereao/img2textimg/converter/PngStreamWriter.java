@@ -0,0 +1,141 @@
+package com.zereao.img2textimg.converter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 流式 PNG 编码：按像素行写入，逐行压缩后以 IDAT 块写出，不需要持有整张图片
+ * <p>
+ * 输出 8 位 RGB、无隔行扫描的 PNG，每行使用 None 过滤
+ *
+ * @author Zereao
+ * @version 2019/05/27 14:08
+ */
+final class PngStreamWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    /**
+     * 每个 IDAT 块的最大数据长度
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater();
+    private final CRC32 crc = new CRC32();
+    /**
+     * 一行未压缩的数据：1 字节过滤类型 + width * 3 字节 RGB
+     */
+    private final byte[] line;
+    /**
+     * 待写出的压缩数据
+     */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+    private int rowsWritten;
+
+    /**
+     * @param out    输出流，关闭时一并关闭
+     * @param width  图片宽
+     * @param height 图片高
+     * @throws IOException IO异常
+     */
+    PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE));
+        this.width = width;
+        this.height = height;
+        this.line = new byte[1 + width * 3];
+        this.out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        // 位深 8，颜色类型 2 (RGB)，压缩、过滤、隔行扫描方式均为 0
+        header[8] = 8;
+        header[9] = 2;
+        this.writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * 写入若干像素行
+     *
+     * @param pixels 像素数组，0xRRGGBB，按行优先保存
+     * @param rows   行数
+     * @throws IOException IO异常
+     */
+    void writeRows(int[] pixels, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IOException("写入的像素行超出图片高度！height = " + height);
+        }
+        byte[] line = this.line;
+        for (int r = 0, i = 0; r < rows; r++) {
+            for (int x = 0, j = 1; x < width; x++, i++) {
+                int rgb = pixels[i];
+                line[j++] = (byte) (rgb >> 16);
+                line[j++] = (byte) (rgb >> 8);
+                line[j++] = (byte) rgb;
+            }
+            deflater.setInput(line);
+            while (!deflater.needsInput()) {
+                this.deflate();
+            }
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * 写完所有像素行后写出剩余的压缩数据和 IEND；像素行不完整时只关闭输出流
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten == height) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    this.deflate();
+                }
+                if (chunkLength > 0) {
+                    this.writeChunk("IDAT", chunk, chunkLength);
+                }
+                this.writeChunk("IEND", chunk, 0);
+            }
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * 压缩一部分数据到 chunk 中，chunk 写满时作为一个 IDAT 块写出
+     */
+    private void deflate() throws IOException {
+        chunkLength += deflater.deflate(chunk, chunkLength, CHUNK_SIZE - chunkLength);
+        if (chunkLength == CHUNK_SIZE) {
+            this.writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
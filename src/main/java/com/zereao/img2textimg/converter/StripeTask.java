@@ -0,0 +1,67 @@
+package com.zereao.img2textimg.converter;
+
+import com.zereao.img2textimg.utils.ThreadPoolUtils;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 条带并行 ForkJoin 任务：把 [from, to) 二分拆成若干不重叠的条带，每个条带由一个线程处理
+ *
+ * @author Zereao
+ * @version 2019/05/20 11:20
+ */
+final class StripeTask extends RecursiveAction {
+    /**
+     * 每个线程平均分到的条带数，多拆几份以平衡各条带的负载
+     */
+    private static final int STRIPES_PER_THREAD = 4;
+
+    /**
+     * 条带处理逻辑
+     */
+    @FunctionalInterface
+    interface Stripe {
+        /**
+         * @param from 起始（包含）
+         * @param to   结束（不包含）
+         */
+        void process(int from, int to);
+    }
+
+    private final Stripe stripe;
+    private final int from;
+    private final int to;
+    /**
+     * 不再拆分的条带大小
+     */
+    private final int grain;
+
+    private StripeTask(Stripe stripe, int from, int to, int grain) {
+        this.stripe = stripe;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+    /**
+     * 在共享的 ForkJoinPool 中并行处理 [0, count)，全部处理完毕后返回
+     *
+     * @param stripe 条带处理逻辑
+     * @param count  总行数
+     */
+    static void invoke(Stripe stripe, int count) {
+        int parallelism = ThreadPoolUtils.getForkJoinPool().getParallelism();
+        int grain = Math.max(1, count / (parallelism * STRIPES_PER_THREAD));
+        ThreadPoolUtils.getForkJoinPool().invoke(new StripeTask(stripe, 0, count, grain));
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= grain) {
+            stripe.process(from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new StripeTask(stripe, from, mid, grain), new StripeTask(stripe, mid, to, grain));
+    }
+}
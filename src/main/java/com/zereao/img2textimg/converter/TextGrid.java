@@ -0,0 +1,132 @@
+package com.zereao.img2textimg.converter;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 字符网格：一维 byte[] 按行优先保存每个单元格的字符元素下标，整帧只需一次内存分配
+ * <p>
+ * 单元格 (col, row) 的下标为 row * stride + col
+ *
+ * @author Zereao
+ * @version 2019/05/09 11:37
+ */
+@Getter
+public final class TextGrid {
+    /**
+     * 组成图案的基本字符元素，单元格中保存的是它的下标
+     */
+    private final String elements;
+    /**
+     * 列数
+     */
+    private final int width;
+    /**
+     * 行数
+     */
+    private final int height;
+    /**
+     * 相邻两行起点之间的距离
+     */
+    private final int stride;
+    /**
+     * 单元格数据
+     */
+    private final byte[] cells;
+    /**
+     * 彩色模式下每个单元格覆盖的原图像素的平均颜色，0xRRGGBB，与 cells 下标一致；非彩色模式为 null
+     */
+    private final int[] colors;
+
+    public TextGrid(String elements, int width, int height) {
+        this(elements, width, height, false);
+    }
+
+    public TextGrid(String elements, int width, int height, boolean colored) {
+        this.elements = elements;
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+        this.cells = new byte[stride * height];
+        this.colors = colored ? new int[stride * height] : null;
+    }
+
+    /**
+     * @return 是否保存了每个单元格的颜色
+     */
+    public boolean isColored() {
+        return colors != null;
+    }
+
+    /**
+     * @param col 列
+     * @param row 行
+     * @return 单元格的字符元素下标
+     */
+    public int getIndex(int col, int row) {
+        return cells[row * stride + col];
+    }
+
+    public void setIndex(int col, int row, int index) {
+        cells[row * stride + col] = (byte) index;
+    }
+
+    /**
+     * @param col 列
+     * @param row 行
+     * @return 单元格对应的字符
+     */
+    public char getChar(int col, int row) {
+        return elements.charAt(cells[row * stride + col]);
+    }
+
+    /**
+     * @param row 行
+     * @return 该行第一个单元格在 cells 中的下标
+     */
+    public int offset(int row) {
+        return row * stride;
+    }
+
+    /**
+     * 单元格内容的指纹，内容相同的网格指纹一定相同，用于快速排除不同的网格
+     *
+     * @return 64 位 FNV-1a 哈希
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (byte cell : cells) {
+            hash = (hash ^ cell) * 0x100000001b3L;
+        }
+        if (colors != null) {
+            for (int color : colors) {
+                hash = (hash ^ color) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param other 另一个字符网格
+     * @return 尺寸、字符与颜色是否完全相同，即渲染结果是否相同
+     */
+    public boolean sameContent(TextGrid other) {
+        return width == other.width && height == other.height && elements.equals(other.elements)
+                && Arrays.equals(cells, other.cells) && Arrays.equals(colors, other.colors);
+    }
+
+    /**
+     * 行监听器，字符网格每转换完一行调用一次
+     */
+    @FunctionalInterface
+    public interface RowListener {
+        /**
+         * @param grid 字符网格
+         * @param row  刚转换完的行号
+         * @throws IOException IO异常
+         */
+        void onRow(TextGrid grid, int row) throws IOException;
+    }
+}
@@ -0,0 +1,161 @@
+package com.zereao.img2textimg.converter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 将字符网格逐行写入文本流，每转换完一行即写出一行，不经过光栅化
+ * <p>
+ * TEXT 模式输出纯文本，多帧之间以空行分隔；
+ * ANSI 模式输出白底的 ANSI 转义文本，多帧之间将光标移回左上角，在终端中 cat 即可播放，彩色字符使用 24 位颜色；
+ * HTML 模式每帧输出一个 pre 标签，彩色字符按颜色合并为 span
+ *
+ * @author Zereao
+ * @version 2019/05/13 17:05
+ */
+public class TextGridWriter implements Closeable {
+    private static final String ESC = "\u001b[";
+
+    private final Writer out;
+    private final OutputMode mode;
+    /**
+     * 已开始的帧数
+     */
+    private int frames = 0;
+
+    public TextGridWriter(OutputStream os, OutputMode mode) {
+        if (!mode.isText()) {
+            throw new IllegalArgumentException("不支持的文本输出模式：" + mode);
+        }
+        this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+        this.mode = mode;
+    }
+
+    /**
+     * 开始新的一帧
+     *
+     * @throws IOException IO异常
+     */
+    public void beginFrame() throws IOException {
+        switch (mode) {
+            case ANSI:
+                // 第一帧清屏，之后的帧覆盖上一帧
+                out.write(frames == 0 ? ESC + "2J" + ESC + "H" : ESC + "H");
+                break;
+            case HTML:
+                if (frames == 0) {
+                    out.write("<!DOCTYPE html>\n<html>\n<head><meta charset=\"UTF-8\"></head>\n<body style=\"background:#fff\">\n");
+                }
+                out.write("<pre style=\"font-family:monospace;line-height:1\">\n");
+                break;
+            default:
+                if (frames > 0) {
+                    out.write('\n');
+                }
+        }
+        frames++;
+    }
+
+    /**
+     * 写出字符网格中的一行
+     *
+     * @param grid 字符网格
+     * @param row  行号
+     * @throws IOException IO异常
+     */
+    public void writeRow(TextGrid grid, int row) throws IOException {
+        switch (mode) {
+            case ANSI:
+                this.writeAnsiRow(grid, row);
+                break;
+            case HTML:
+                this.writeHtmlRow(grid, row);
+                break;
+            default:
+                byte[] cells = grid.getCells();
+                String elements = grid.getElements();
+                for (int c = 0, w = grid.getWidth(), offset = grid.offset(row); c < w; c++) {
+                    out.write(elements.charAt(cells[offset + c]));
+                }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * 结束当前帧，将已写入的内容刷到输出流
+     *
+     * @throws IOException IO异常
+     */
+    public void endFrame() throws IOException {
+        if (mode == OutputMode.HTML) {
+            out.write("</pre>\n");
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mode == OutputMode.HTML && frames > 0) {
+            out.write("</body>\n</html>\n");
+        }
+        out.close();
+    }
+
+    /**
+     * 白色背景；非彩色模式为黑色前景，彩色模式下仅在颜色变化时输出新的 24 位前景色
+     */
+    private void writeAnsiRow(TextGrid grid, int row) throws IOException {
+        byte[] cells = grid.getCells();
+        int[] colors = grid.getColors();
+        String elements = grid.getElements();
+        out.write(colors == null ? ESC + "30;47m" : ESC + "47m");
+        int current = -1;
+        for (int c = 0, w = grid.getWidth(), offset = grid.offset(row); c < w; c++) {
+            if (colors != null && colors[offset + c] != current) {
+                current = colors[offset + c];
+                out.write(ESC + "38;2;" + (current >> 16 & 0xff) + ';' + (current >> 8 & 0xff) + ';' + (current & 0xff) + 'm');
+            }
+            out.write(elements.charAt(cells[offset + c]));
+        }
+        out.write(ESC + "0m");
+    }
+
+    /**
+     * 彩色模式下，连续相同颜色的字符合并为一个 span
+     */
+    private void writeHtmlRow(TextGrid grid, int row) throws IOException {
+        byte[] cells = grid.getCells();
+        int[] colors = grid.getColors();
+        String elements = grid.getElements();
+        int current = -1;
+        for (int c = 0, w = grid.getWidth(), offset = grid.offset(row); c < w; c++) {
+            if (colors != null && colors[offset + c] != current) {
+                if (current >= 0) {
+                    out.write("</span>");
+                }
+                current = colors[offset + c];
+                out.write(String.format("<span style=\"color:#%06x\">", current));
+            }
+            this.writeHtmlChar(elements.charAt(cells[offset + c]));
+        }
+        if (current >= 0) {
+            out.write("</span>");
+        }
+    }
+
+    private void writeHtmlChar(char c) throws IOException {
+        switch (c) {
+            case '&':
+                out.write("&amp;");
+                break;
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            default:
+                out.write(c);
+        }
+    }
+}
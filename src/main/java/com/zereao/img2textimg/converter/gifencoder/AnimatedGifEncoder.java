@@ -3,7 +3,16 @@ package com.zereao.img2textimg.converter.gifencoder;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class AnimatedGifEncoder - Encodes a GIF file consisting of one or
@@ -57,51 +66,73 @@ public class AnimatedGifEncoder {
 
     private OutputStream out;
     /**
-     * current frame 图片
+     * disposal code (-1 = use default) 处置代码（- 1 =使用默认）
      */
-    private BufferedImage image;
+    private int dispose = -1;
     /**
-     * BGR byte array from frame  帧数组
+     * close stream when finished 关闭流
      */
-    private byte[] pixels;
+    private boolean closeStream = false;
+
+    private boolean firstFrame = true;
     /**
-     * converted frame indexed to palette 转换成调色板
+     * if false, get size from first frame
      */
-    private byte[] indexedPixels;
+    private boolean sizeSet = false;
     /**
-     * number of bit planes
+     * default sample interval for quantizer
      */
-    private int colorDepth;
+    private int sample = 10;
     /**
-     * RGB palette 平面数
+     * maximum number of pixels sampled per frame for training a global palette
      */
-    private byte[] colorTab;
+    public static final int PALETTE_SAMPLES = 1 << 16;
     /**
-     * active palette entries 活动调色板条目
+     * a color farther than this from every fixed palette color is not
+     * covered by the palette
      */
-    private boolean[] usedEntry = new boolean[256];
+    private static final int COVER_DISTANCE = 16;
     /**
-     * color table size (bits-1) 颜色表大小
+     * pool for quantizing and LZW-encoding frames, null to encode on the calling thread
      */
-    private int palSize = 7;
+    private ExecutorService encodePool;
     /**
-     * disposal code (-1 = use default) 处置代码（- 1 =使用默认）
+     * maximum number of frames being encoded at once
      */
-    private int dispose = -1;
+    private int encodeWindow = 1;
     /**
-     * close stream when finished 关闭流
+     * frames submitted to the pool, in frame order
      */
-    private boolean closeStream = false;
-
-    private boolean firstFrame = true;
+    private final Deque<Future<FrameBlock>> pending = new ArrayDeque<>();
     /**
-     * if false, get size from first frame
+     * set when a frame failed to encode or write; no further frames are
+     * written, so the output never silently misses a frame
      */
-    private boolean sizeSet = false;
+    private boolean failed = false;
     /**
-     * default sample interval for quantizer
+     * fixed palette for frames added from now on, null to quantize each frame with NeuQuant
      */
-    private int sample = 10;
+    private FixedPalette palette;
+    /**
+     * fixed palette written as the global color table, the palette of the first frame
+     */
+    private FixedPalette globalPalette;
+    /**
+     * pixels per LZW strip of a frame, 0 to LZW-encode each frame serially
+     */
+    private int stripSize = 0;
+    /**
+     * encode only the rectangle that changed since the previous frame
+     */
+    private boolean deltaFrames = false;
+    /**
+     * previous frame, for delta frames
+     */
+    private BufferedImage previous;
+    /**
+     * colors sampled for training a palette, 0xRRGGBB, with their pixel counts
+     */
+    private Map<Integer, Integer> paletteSamples;
 
     /**
      * Sets the delay time between each frame, or changes it
@@ -166,7 +197,21 @@ public class AnimatedGifEncoder {
      * @return true if successful.
      */
     public boolean addFrame(BufferedImage im) {
-        if ((im == null) || !started) {
+        return this.addFrame(im, null);
+    }
+
+    /**
+     * Adds next GIF frame, with the region in which it may differ from
+     * the previous frame. Delta frames (see <code>setDeltaFrames</code>)
+     * then only diff that region instead of the whole frame.
+     *
+     * @param im      BufferedImage containing frame to write.
+     * @param changed Region outside which the frame equals the previous
+     *                frame, empty if the frames are equal, null if unknown.
+     * @return true if successful.
+     */
+    public boolean addFrame(BufferedImage im, Rectangle changed) {
+        if ((im == null) || !started || failed) {
             return false;
         }
         boolean ok = true;
@@ -175,25 +220,25 @@ public class AnimatedGifEncoder {
                 // use first frame's size
                 this.setSize(im.getWidth(), im.getHeight());
             }
-            image = im;
-            this.getImagePixels(); // convert to correct format if necessary
-            this.analyzePixels(); // build color table & map pixels
             if (firstFrame) {
-                this.writeLSD(); // logical screen descriptior
-                this.writePalette(); // global color table
-                if (repeat >= 0) {
-                    // use NS app extension to indicate reps
-                    this.writeNetscapeExt();
-                }
+                globalPalette = palette;
             }
-            this.writeGraphicCtrlExt(); // write graphic control extension
-            this.writeImageDesc(); // image descriptor
-            if (!firstFrame) {
-                this.writePalette(); // local color table
-            }
-            this.writePixels(); // encode and write pixel data
+            FrameBlock block = new FrameBlock(im, firstFrame, previous, changed);
             firstFrame = false;
+            if (deltaFrames && palette != null) {
+                previous = im;
+            }
+            if (encodePool == null) {
+                this.writeBlock(block.encode());
+            } else {
+                pending.add(encodePool.submit(block::encode));
+                // write every block that is already done, and wait for the oldest one when the window is full
+                while (!pending.isEmpty() && (pending.size() > encodeWindow || pending.peekFirst().isDone())) {
+                    this.writeBlock(this.await(pending.pollFirst()));
+                }
+            }
         } catch (IOException e) {
+            this.fail();
             ok = false;
         }
         return ok;
@@ -203,16 +248,28 @@ public class AnimatedGifEncoder {
      * Flushes any pending data and closes output file.
      * If writing to an OutputStream, the stream is not
      * closed.
+     *
+     * @return false if any frame failed to encode or write, in which case
+     * the output is incomplete.
      */
     public boolean finish() {
         if (!started) {
             return false;
         }
-        boolean ok = true;
         started = false;
         try {
-            // gif trailer
-            out.write(0x3b);
+            while (!failed && !pending.isEmpty()) {
+                this.writeBlock(this.await(pending.pollFirst()));
+            }
+        } catch (IOException e) {
+            this.fail();
+        }
+        boolean ok = !failed;
+        try {
+            if (!failed) {
+                // gif trailer
+                out.write(0x3b);
+            }
             out.flush();
             if (closeStream) {
                 out.close();
@@ -223,12 +280,15 @@ public class AnimatedGifEncoder {
         // reset for subsequent use
         transIndex = 0;
         out = null;
-        image = null;
-        pixels = null;
-        indexedPixels = null;
-        colorTab = null;
+        previous = null;
+        globalPalette = null;
+        for (Future<FrameBlock> block : pending) {
+            block.cancel(true);
+        }
+        pending.clear();
         closeStream = false;
         firstFrame = true;
+        failed = false;
         return ok;
     }
 
@@ -261,6 +321,266 @@ public class AnimatedGifEncoder {
         sample = quality;
     }
 
+    /**
+     * Uses a fixed palette for all frames instead of quantizing each frame
+     * with NeuQuant. The palette is written once as the global color table
+     * with the smallest size that holds it, pixels are mapped to the closest
+     * palette color, and the image data is LZW-encoded with the minimum
+     * color depth (1 bit for two colors). Suited to frames that only contain
+     * a few known colors, such as text rendered on a uniform background.
+     * Must be invoked before the first image is added.
+     *
+     * @param colors palette colors, 1 to 256 entries; none to quantize each frame
+     */
+    public void setPalette(Color... colors) {
+        if (started && !firstFrame) {
+            return;
+        }
+        if (colors == null || colors.length == 0) {
+            palette = null;
+            return;
+        }
+        if (colors.length > 256) {
+            throw new IllegalArgumentException("GIF palette holds at most 256 colors: " + colors.length);
+        }
+        int[] rgb = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            rgb[i] = colors[i].getRGB() & 0xffffff;
+        }
+        this.usePalette(rgb);
+    }
+
+    /**
+     * Samples pixels of a frame for training a palette with
+     * <code>trainPalette</code>. At most {@link #PALETTE_SAMPLES} pixels,
+     * evenly spaced, are counted per frame, so frames spread over the whole
+     * animation or a window of it can be sampled without holding them.
+     *
+     * @param im frame to sample
+     */
+    public void addPaletteSample(BufferedImage im) {
+        int w = im.getWidth();
+        long n = (long) w * im.getHeight();
+        long step = Math.max(1, n / PALETTE_SAMPLES);
+        for (long i = 0; i < n; i += step) {
+            this.addPaletteSample(im.getRGB((int) (i % w), (int) (i / w)), 1);
+        }
+    }
+
+    /**
+     * Samples a color for training a palette with <code>trainPalette</code>,
+     * for callers that know the colors of a frame without rendering it.
+     *
+     * @param rgb    color, 0xRRGGBB; the alpha channel is ignored
+     * @param pixels number of pixels of that color
+     */
+    public void addPaletteSample(int rgb, int pixels) {
+        if (pixels <= 0) {
+            return;
+        }
+        if (paletteSamples == null) {
+            paletteSamples = new HashMap<>();
+        }
+        paletteSamples.merge(rgb & 0xffffff, pixels, Integer::sum);
+    }
+
+    /**
+     * Builds a palette from the colors sampled with
+     * <code>addPaletteSample</code> and uses it as a fixed palette, see
+     * <code>setPalette</code>: each frame is mapped through the cached
+     * inverse color lookup instead of being quantized. If the samples hold
+     * no more colors than the palette, they are used as is; otherwise
+     * NeuQuant is trained on the distinct colors weighted by the square
+     * root of their pixel counts, so a dominant background does not take
+     * the palette entries needed by the rarer colors.
+     * <p>
+     * Invoked before the first image is added, the palette is written as
+     * the global color table. Invoked again later, for example once per
+     * window of frames, the current palette is kept if it maps the new
+     * samples about as well; otherwise the new palette is used for the
+     * frames added from now on and written as their local color table.
+     * Does nothing if no colors were sampled.
+     */
+    public void trainPalette() {
+        if (paletteSamples == null || paletteSamples.isEmpty()) {
+            return;
+        }
+        Map<Integer, Integer> samples = paletteSamples;
+        paletteSamples = null;
+        FixedPalette trained = new FixedPalette(quantize(samples, deltaFrames ? 255 : 256, sample));
+        if (!started || firstFrame || palette == null || !palette.covers(samples, trained)) {
+            palette = trained;
+        }
+    }
+
+    private void usePalette(int[] rgb) {
+        palette = new FixedPalette(rgb);
+    }
+
+    /**
+     * Reduces a color histogram to at most {@code maxColors} colors: the
+     * colors themselves if they fit, otherwise a NeuQuant palette trained on
+     * the distinct colors weighted by the square root of their counts, each
+     * entry moved onto the most frequent color it maps, without unused and
+     * duplicate entries
+     *
+     * @param histogram colors, 0xRRGGBB, with their pixel counts
+     * @param maxColors maximum palette size, at most 256
+     * @param sample    NeuQuant sampling factor
+     * @return palette colors, 0xRRGGBB
+     */
+    private static int[] quantize(Map<Integer, Integer> histogram, int maxColors, int sample) {
+        int[] colors = new int[histogram.size()];
+        int[] counts = new int[colors.length];
+        int n = 0, weights = 0;
+        for (Map.Entry<Integer, Integer> e : histogram.entrySet()) {
+            colors[n] = e.getKey();
+            counts[n] = e.getValue();
+            weights += (int) Math.ceil(Math.sqrt(counts[n++]));
+        }
+        if (n <= maxColors) {
+            Arrays.sort(colors);
+            return colors;
+        }
+        // BGR samples, each distinct color repeated by its weight
+        byte[] samples = new byte[weights * 3];
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int w = (int) Math.ceil(Math.sqrt(counts[i])); w > 0; w--) {
+                samples[k++] = (byte) colors[i];
+                samples[k++] = (byte) (colors[i] >> 8);
+                samples[k++] = (byte) (colors[i] >> 16);
+            }
+        }
+        byte[] tab = new NeuQuant(samples, samples.length, sample).process();
+        int[] palette = new int[tab.length / 3];
+        for (int i = 0, k = 0; i < palette.length; i++, k += 3) {
+            palette[i] = (tab[k + 2] & 0xff) << 16 | (tab[k + 1] & 0xff) << 8 | (tab[k] & 0xff);
+        }
+        // pixels mapped to each entry, and the most frequent color mapped to it: entries are moved onto that
+        // color so that dominant colors such as the background are reproduced exactly.
+        // Then the least used entries are dropped until the palette fits
+        long[] usage = new long[palette.length];
+        int[] top = new int[palette.length];
+        int[] topCount = new int[palette.length];
+        for (int i = 0; i < n; i++) {
+            int index = closest(palette, palette.length, colors[i]);
+            usage[index] += counts[i];
+            if (counts[i] > topCount[index]) {
+                topCount[index] = counts[i];
+                top[index] = colors[i];
+            }
+        }
+        for (int i = 0; i < palette.length; i++) {
+            if (usage[i] > 0) {
+                palette[i] = top[i];
+            }
+        }
+        long[] keys = new long[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            keys[i] = usage[i] << 8 | i;
+        }
+        Arrays.sort(keys);
+        int[] kept = new int[palette.length];
+        int size = 0;
+        for (int i = keys.length - 1; i >= 0 && size < maxColors; i--) {
+            int color = palette[(int) (keys[i] & 0xff)];
+            if ((keys[i] >>> 8) == 0) {
+                break;
+            }
+            boolean duplicate = false;
+            for (int j = 0; j < size && !duplicate; j++) {
+                duplicate = kept[j] == color;
+            }
+            if (!duplicate) {
+                kept[size++] = color;
+            }
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    /**
+     * Returns the index of the first of {@code size} palette colors closest to rgb
+     */
+    private static int closest(int[] palette, int size, int rgb) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        int minpos = 0;
+        int dmin = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int c = palette[i];
+            int dr = r - ((c >> 16) & 0xff);
+            int dg = g - ((c >> 8) & 0xff);
+            int db = b - (c & 0xff);
+            int d = dr * dr + dg * dg + db * db;
+            if (d < dmin) {
+                dmin = d;
+                minpos = i;
+            }
+        }
+        return minpos;
+    }
+
+    /**
+     * Returns the squared distance from rgb to the closest palette color
+     */
+    private static int distance(int[] palette, int rgb) {
+        int c = palette[closest(palette, palette.length, rgb)];
+        int dr = ((rgb >> 16) & 0xff) - ((c >> 16) & 0xff);
+        int dg = ((rgb >> 8) & 0xff) - ((c >> 8) & 0xff);
+        int db = (rgb & 0xff) - (c & 0xff);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Encodes each frame after the first as a delta against the previous
+     * frame: only the bounding rectangle of the changed pixels is written,
+     * and unchanged pixels inside it use a transparent index reserved in
+     * the global color table (if the palette has fewer than 256 colors and
+     * no transparent color is set). Frames are written with disposal
+     * method 1, so each one stays in place for the next to be drawn over.
+     * Only applies with a fixed palette, see <code>setPalette</code> and
+     * <code>trainPalette</code>, where an unchanged pixel always maps to
+     * the same color. Must be invoked before the first image is added.
+     *
+     * @param delta true to write delta frames
+     */
+    public void setDeltaFrames(boolean delta) {
+        if (started && !firstFrame) {
+            return;
+        }
+        deltaFrames = delta;
+    }
+
+    /**
+     * Splits the indexed pixels of frames larger than {@code pixels} into
+     * strips that are LZW-encoded in parallel, on the fork/join pool that
+     * encodes the frame or the common pool. Each strip starts with a clear
+     * code, which costs some compression: smaller strips encode faster on
+     * more threads but produce larger files.
+     *
+     * @param pixels pixels per strip, 0 to LZW-encode each frame serially
+     */
+    public void setStripSize(int pixels) {
+        stripSize = Math.max(0, pixels);
+    }
+
+    /**
+     * Quantizes and LZW-encodes frames on the given pool. Each frame is
+     * encoded into a self-contained block (graphic control extension,
+     * image descriptor, color table and image data) that only depends on
+     * the frame itself, so up to {@code window} frames are encoded in
+     * parallel. Blocks are written strictly in frame order as they
+     * complete, and the output is byte-for-byte identical to serial
+     * encoding. Images passed to <code>addFrame</code> must not be
+     * modified afterwards.
+     *
+     * @param pool   Pool for the encode phase, null to encode on the calling thread
+     * @param window Number of frames to encode ahead
+     */
+    public void setEncodePool(ExecutorService pool, int window) {
+        this.encodePool = pool;
+        this.encodeWindow = Math.max(1, window);
+    }
+
     /**
      * Sets the GIF frame size.  The default size is the
      * size of the first frame added if this method is
@@ -300,7 +620,7 @@ public class AnimatedGifEncoder {
         out = os;
         try {
             // header
-            this.writeString("GIF89a");
+            writeString(out, "GIF89a");
         } catch (IOException e) {
             ok = false;
         }
@@ -346,204 +666,658 @@ public class AnimatedGifEncoder {
     }
 
     /**
-     * Analyzes image colors and creates color map.
-     */
-    private void analyzePixels() {
-        int len = pixels.length;
-        int nPix = len / 3;
-        indexedPixels = new byte[nPix];
-        NeuQuant nq = new NeuQuant(pixels, len, sample);
-        // initialize quantizer
-        // create reduced palette
-        colorTab = nq.process();
-        // convert map from BGR to RGB
-        for (int i = 0; i < colorTab.length; i += 3) {
-            byte temp = colorTab[i];
-            colorTab[i] = colorTab[i + 2];
-            colorTab[i + 2] = temp;
-            usedEntry[i / 3] = false;
-        }
-        // map image pixels to new palette
-        int k = 0;
-        for (int i = 0; i < nPix; i++) {
-            int index =
-                    nq.map(pixels[k++] & 0xff,
-                            pixels[k++] & 0xff,
-                            pixels[k++] & 0xff);
-            usedEntry[index] = true;
-            indexedPixels[i] = (byte) index;
-        }
-        pixels = null;
-        colorDepth = 8;
-        palSize = 7;
-        // get closest match to transparent color if specified
-        if (transparent != null) {
-            transIndex = this.findClosest(transparent);
+     * Writes an encoded frame, filling in the transparent index of the
+     * last frame that had a transparent color if this one has none.
+     */
+    private void writeBlock(FrameBlock block) throws IOException {
+        if (block.transIndex >= 0) {
+            transIndex = block.transIndex;
+        } else {
+            block.data[block.transIndexOffset] = (byte) transIndex;
         }
+        out.write(block.data, 0, block.data.length);
     }
 
     /**
-     * Returns index of palette color closest to c
+     * Stops writing after a frame failed: frames still being encoded are
+     * cancelled, and later frames are rejected until <code>finish()</code>.
      */
-    private int findClosest(Color c) {
-        if (colorTab == null) {
-            return -1;
+    private void fail() {
+        failed = true;
+        for (Future<FrameBlock> block : pending) {
+            block.cancel(true);
         }
-        int r = c.getRed();
-        int g = c.getGreen();
-        int b = c.getBlue();
-        int minpos = 0;
-        int dmin = 256 * 256 * 256;
-        int len = colorTab.length;
-        for (int i = 0; i < len; ) {
-            int dr = r - (colorTab[i++] & 0xff);
-            int dg = g - (colorTab[i++] & 0xff);
-            int db = b - (colorTab[i] & 0xff);
-            int d = dr * dr + dg * dg + db * db;
-            int index = i / 3;
-            if (usedEntry[index] && (d < dmin)) {
-                dmin = d;
-                minpos = index;
-            }
-            i++;
-        }
-        return minpos;
+        pending.clear();
     }
 
     /**
-     * Extracts image pixels into byte array "pixels"
+     * Waits for a frame submitted to the encode pool
      */
-    private void getImagePixels() {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        int type = image.getType();
-        if (w != width || h != height || type != BufferedImage.TYPE_3BYTE_BGR) {
-            // create new image with right size/format
-            BufferedImage temp = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D graphics = temp.createGraphics();
-            graphics.drawImage(image, 0, 0, null);
-            image = temp;
+    private FrameBlock await(Future<FrameBlock> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("GIF encoding interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("GIF encoding failed", e.getCause());
         }
-        pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
     }
 
     /**
-     * Writes Graphic Control Extension
-     */
-    private void writeGraphicCtrlExt() throws IOException {
-        // extension introducer
-        out.write(0x21);
-        // GCE label
-        out.write(0xf9);
-        // data block size
-        out.write(4);
-        int transp, disp;
-        if (transparent == null) {
-            transp = 0;
-            // dispose = no action
-            disp = 0;
-        } else {
-            transp = 1;
-            // force clear if using transparent color
-            disp = 2;
-        }
-        if (dispose >= 0) {
-            // user override
-            disp = dispose & 7;
-        }
-        disp <<= 2;
-        // packed fields
-        out.write(disp | transp);
-        // delay x 1/100 sec
-        this.writeShort(delay);
-        // transparent color index
-        out.write(transIndex);
-        // block terminator
-        out.write(0);
+     * A fixed palette with its cached inverse color lookup. The lookup is
+     * shared by all frames mapped to the palette; concurrent frames may
+     * resolve the same color twice, with the same result.
+     */
+    private static final class FixedPalette {
+        /**
+         * lookup entry flags: the entry is set, and its color is not covered
+         */
+        private static final int CACHED = 1 << 15, UNCOVERED = 1 << 14;
+        /**
+         * palette colors, 0xRRGGBB
+         */
+        private final int[] rgb;
+        /**
+         * inverse lookup, indexed by the low 18 bits of a color; each entry
+         * holds the flags, the high 6 bits of the color and its palette
+         * index, so a color is only served by an entry resolved for it
+         */
+        private final int[] inverse = new int[1 << 18];
+
+        private FixedPalette(int[] rgb) {
+            this.rgb = rgb;
+        }
+
+        /**
+         * Returns the index of the palette color closest to c, plus
+         * {@link #UNCOVERED} if it is farther than {@link #COVER_DISTANCE}
+         */
+        private int lookup(int c) {
+            int tag = CACHED | (c >> 10 & 0x3f00);
+            int entry = inverse[c & 0x3ffff];
+            if ((entry & (CACHED | 0x3f00)) != tag) {
+                int index = closest(rgb, rgb.length, c);
+                entry = tag | index;
+                if (distance(rgb, c) > COVER_DISTANCE * COVER_DISTANCE) {
+                    entry |= UNCOVERED;
+                }
+                inverse[c & 0x3ffff] = entry;
+            }
+            return entry & (UNCOVERED | 0xff);
+        }
+
+        /**
+         * Whether this palette covers every sampled color and maps the
+         * samples about as well as a newly trained palette: its mean squared
+         * error is at most a quarter more, plus one level
+         */
+        private boolean covers(Map<Integer, Integer> samples, FixedPalette trained) {
+            long current = 0, better = 0, pixels = 0;
+            for (Map.Entry<Integer, Integer> e : samples.entrySet()) {
+                int d = distance(rgb, e.getKey());
+                if (d > COVER_DISTANCE * COVER_DISTANCE) {
+                    return false;
+                }
+                current += (long) d * e.getValue();
+                better += (long) distance(trained.rgb, e.getKey()) * e.getValue();
+                pixels += e.getValue();
+            }
+            return current <= better + better / 4 + pixels;
+        }
     }
 
     /**
-     * Writes Image Descriptor
+     * One frame encoded into a self-contained block. The frame settings are
+     * copied when the frame is added, so the block can be encoded on any
+     * thread while later frames are being added.
      */
-    private void writeImageDesc() throws IOException {
+    private final class FrameBlock {
+        private final int width;
+        private final int height;
+        private final Color transparent;
+        private final int repeat;
+        private final int delay;
+        private final int dispose;
+        private final int sample;
+        private final int stripSize;
+        /**
+         * fixed palette the frame is mapped to, null to quantize the frame
+         */
+        private FixedPalette palette;
+        /**
+         * fixed palette written as the global color table
+         */
+        private final FixedPalette global;
+        /**
+         * previous frame to diff against, null to encode the full frame
+         */
+        private BufferedImage previous;
+        /**
+         * region outside which the frame equals the previous frame, null if unknown
+         */
+        private final Rectangle changed;
+        /**
+         * delta frames: index reserved in the palette for unchanged pixels, -1 if none
+         */
+        private int deltaIndex;
+        /**
+         * delta frames: disposal method 1 for all frames
+         */
+        private final boolean delta;
+        /**
+         * encoded rectangle
+         */
+        private int left, top, rectW, rectH;
+        /**
+         * first frame: also writes the logical screen descriptor and global color table
+         */
+        private final boolean firstFrame;
+        private BufferedImage image;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        /**
+         * BGR byte array from frame  帧数组
+         */
+        private byte[] pixels;
+        /**
+         * converted frame indexed to palette 转换成调色板
+         */
+        private byte[] indexedPixels;
+        /**
+         * number of bit planes
+         */
+        private int colorDepth;
+        /**
+         * RGB palette 平面数
+         */
+        private byte[] colorTab;
+        /**
+         * active palette entries 活动调色板条目
+         */
+        private final boolean[] usedEntry = new boolean[256];
+        /**
+         * color table size (bits-1) 颜色表大小
+         */
+        private int palSize = 7;
+        /**
+         * first frame: global color table and its size (bits-1)
+         */
+        private byte[] globalTab;
+        private int globalPalSize;
+        /**
+         * transparent index in color table, -1 if no transparent color is given
+         */
+        private int transIndex = -1;
+        /**
+         * offset of the transparent index in the graphic control extension
+         */
+        private int transIndexOffset;
+        /**
+         * encoded block
+         */
+        private byte[] data;
+
+        private FrameBlock(BufferedImage image, boolean firstFrame, BufferedImage previous, Rectangle changed) {
+            this.width = AnimatedGifEncoder.this.width;
+            this.height = AnimatedGifEncoder.this.height;
+            this.transparent = AnimatedGifEncoder.this.transparent;
+            this.repeat = AnimatedGifEncoder.this.repeat;
+            this.delay = AnimatedGifEncoder.this.delay;
+            this.dispose = AnimatedGifEncoder.this.dispose;
+            this.sample = AnimatedGifEncoder.this.sample;
+            this.stripSize = AnimatedGifEncoder.this.stripSize;
+            this.palette = AnimatedGifEncoder.this.palette;
+            this.global = AnimatedGifEncoder.this.globalPalette;
+            this.delta = deltaFrames && palette != null;
+            this.previous = delta ? previous : null;
+            this.changed = changed;
+            this.rectW = width;
+            this.rectH = height;
+            this.image = image;
+            this.firstFrame = firstFrame;
+        }
+
+        /**
+         * Quantizes the frame and writes the whole block
+         */
+        private FrameBlock encode() throws IOException {
+            if (palette == null) {
+                this.getImagePixels(image); // convert to correct format if necessary
+                this.analyzePixels(); // build color table & map pixels
+                pixels = null;
+            } else {
+                this.mapPixels(image); // map pixels to the fixed palette
+            }
+            image = null;
+            if (firstFrame) {
+                this.writeLSD(); // logical screen descriptior
+                this.writePalette(globalTab, globalPalSize); // global color table
+                if (repeat >= 0) {
+                    // use NS app extension to indicate reps
+                    this.writeNetscapeExt();
+                }
+            }
+            this.writeGraphicCtrlExt(); // write graphic control extension
+            this.writeImageDesc(); // image descriptor
+            if (this.hasLocalTable()) {
+                this.writePalette(colorTab, palSize); // local color table
+            }
+            this.writePixels(); // encode and write pixel data
+            indexedPixels = null;
+            data = out.toByteArray();
+            return this;
+        }
+
+        /**
+         * Analyzes image colors and creates color map.
+         */
+        private void analyzePixels() {
+            int len = pixels.length;
+            int nPix = len / 3;
+            indexedPixels = new byte[nPix];
+            NeuQuant nq = new NeuQuant(pixels, len, sample);
+            // initialize quantizer
+            // create reduced palette
+            colorTab = nq.process();
+            // convert map from BGR to RGB
+            for (int i = 0; i < colorTab.length; i += 3) {
+                byte temp = colorTab[i];
+                colorTab[i] = colorTab[i + 2];
+                colorTab[i + 2] = temp;
+                usedEntry[i / 3] = false;
+            }
+            // map image pixels to new palette
+            int k = 0;
+            for (int i = 0; i < nPix; i++) {
+                int index =
+                        nq.map(pixels[k++] & 0xff,
+                                pixels[k++] & 0xff,
+                                pixels[k++] & 0xff);
+                usedEntry[index] = true;
+                indexedPixels[i] = (byte) index;
+            }
+            colorDepth = 8;
+            palSize = 7;
+            globalTab = colorTab;
+            globalPalSize = palSize;
+            // get closest match to transparent color if specified
+            if (transparent != null) {
+                transIndex = this.findClosest(transparent);
+            }
+        }
+
+        /**
+         * Maps image pixels to the fixed palette and builds the color table
+         * with the fewest bit planes that holds it. A frame with colors the
+         * palette does not cover is mapped to a palette of its own instead,
+         * written as its local color table.
+         */
+        private void mapPixels(BufferedImage image) {
+            int[] rgb = this.getRgbPixels(image);
+            int[] prev = null;
+            if (previous != null) {
+                prev = this.getRgbPixels(previous);
+                previous = null;
+                this.findChangedRect(rgb, prev);
+            }
+            indexedPixels = new byte[rectW * rectH];
+            if (!this.mapPixels(rgb, prev)) {
+                palette = new FixedPalette(quantize(this.histogram(rgb, prev), delta ? 255 : 256, sample));
+                this.mapPixels(rgb, prev);
+            }
+            int[] colors = palette.rgb;
+            palSize = this.tableSize(colors);
+            colorDepth = palSize + 1;
+            // the reserved transparent index is part of the color table, but is never mapped to
+            colorTab = this.colorTable(colors);
+            Arrays.fill(usedEntry, 0, colors.length, true);
+            if (firstFrame) {
+                globalTab = palette == global ? colorTab : this.colorTable(global.rgb);
+                globalPalSize = this.tableSize(global.rgb);
+            }
+            // get closest match to transparent color if specified
+            if (transparent != null) {
+                transIndex = this.findClosest(transparent);
+            } else if (deltaIndex >= 0 && prev != null) {
+                transIndex = deltaIndex;
+            }
+        }
 
-        out.write(0x2c); // image separator
-        // image position x,y = 0,0
-        this.writeShort(0);
-        this.writeShort(0);
-        // image size
-        this.writeShort(width);
-        this.writeShort(height);
-        // packed fields
-        if (firstFrame) {
-            // no LCT  - GCT is used for first (or only) frame
+        /**
+         * Maps the pixels of the encoded rectangle to the palette
+         *
+         * @return false if some pixel is not covered by the palette
+         */
+        private boolean mapPixels(int[] rgb, int[] prev) {
+            FixedPalette palette = this.palette;
+            deltaIndex = delta && palette.rgb.length < 256 ? palette.rgb.length : -1;
+            // unchanged pixels inside the rectangle are written as the reserved transparent index
+            int unchanged = transparent == null && prev != null ? deltaIndex : -1;
+            // frames are mostly runs of one color, so only look up a color when it changes
+            int last = -1, index = 0;
+            boolean covered = true;
+            for (int y = 0, k = 0; y < rectH; y++) {
+                for (int x = 0, i = (top + y) * width + left; x < rectW; x++, i++, k++) {
+                    int c = rgb[i] & 0xffffff;
+                    if (unchanged >= 0 && c == (prev[i] & 0xffffff)) {
+                        indexedPixels[k] = (byte) unchanged;
+                        continue;
+                    }
+                    if (c != last) {
+                        last = c;
+                        index = palette.lookup(c);
+                        covered &= index < FixedPalette.UNCOVERED;
+                    }
+                    indexedPixels[k] = (byte) index;
+                }
+            }
+            return covered;
+        }
+
+        /**
+         * Counts the colors of the pixels of the encoded rectangle that
+         * differ from the previous frame
+         */
+        private Map<Integer, Integer> histogram(int[] rgb, int[] prev) {
+            Map<Integer, Integer> histogram = new HashMap<>();
+            int last = -1, run = 0;
+            for (int y = 0; y < rectH; y++) {
+                for (int x = 0, i = (top + y) * width + left; x < rectW; x++, i++) {
+                    int c = rgb[i] & 0xffffff;
+                    if (prev != null && transparent == null && c == (prev[i] & 0xffffff)) {
+                        continue;
+                    }
+                    if (c != last) {
+                        if (run > 0) {
+                            histogram.merge(last, run, Integer::sum);
+                        }
+                        last = c;
+                        run = 0;
+                    }
+                    run++;
+                }
+            }
+            if (run > 0) {
+                histogram.merge(last, run, Integer::sum);
+            }
+            if (histogram.isEmpty()) {
+                // every pixel is unchanged: any color will do
+                histogram.put(rgb[top * width + left] & 0xffffff, 1);
+            }
+            return histogram;
+        }
+
+        /**
+         * Returns the color table size (bits-1) that holds the palette and,
+         * for delta frames, the reserved transparent index
+         */
+        private int tableSize(int[] colors) {
+            int n = delta && colors.length < 256 ? colors.length + 1 : colors.length;
+            int size = 0;
+            while ((1 << (size + 1)) < n) {
+                size++;
+            }
+            return size;
+        }
+
+        /**
+         * Returns the RGB color table of the palette, with a zero entry for
+         * the reserved transparent index of delta frames
+         */
+        private byte[] colorTable(int[] colors) {
+            int n = delta && colors.length < 256 ? colors.length + 1 : colors.length;
+            byte[] tab = new byte[n * 3];
+            for (int i = 0, k = 0; i < colors.length; i++) {
+                tab[k++] = (byte) (colors[i] >> 16);
+                tab[k++] = (byte) (colors[i] >> 8);
+                tab[k++] = (byte) colors[i];
+            }
+            return tab;
+        }
+
+        /**
+         * Whether the frame is written with a local color table: every frame
+         * but the first when quantizing each frame, and frames whose fixed
+         * palette is not the global one
+         */
+        private boolean hasLocalTable() {
+            return palette == null ? !firstFrame : palette != global;
+        }
+
+        /**
+         * Returns the pixels of a frame as 0xRRGGBB, converting the frame if necessary
+         */
+        private int[] getRgbPixels(BufferedImage image) {
+            int type = image.getType();
+            if (image.getWidth() != width || image.getHeight() != height
+                    || (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)) {
+                BufferedImage temp = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = temp.createGraphics();
+                graphics.drawImage(image, 0, 0, null);
+                graphics.dispose();
+                image = temp;
+            }
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        /**
+         * Shrinks the encoded rectangle to the bounding box of the pixels
+         * that differ from the previous frame, at least one pixel
+         */
+        private void findChangedRect(int[] rgb, int[] prev) {
+            // only the region that may have changed needs to be compared
+            Rectangle region = new Rectangle(0, 0, width, height);
+            if (changed != null) {
+                region = region.intersection(changed);
+            }
+            int xFrom = region.x, xTo = region.x + region.width;
+            int minX = width, maxX = -1, minY = height, maxY = -1;
+            for (int y = region.y, yTo = region.y + region.height; y < yTo; y++) {
+                int row = y * width;
+                int x = xFrom;
+                while (x < xTo && ((rgb[row + x] ^ prev[row + x]) & 0xffffff) == 0) {
+                    x++;
+                }
+                if (x >= xTo) {
+                    continue;
+                }
+                int x2 = xTo - 1;
+                while (((rgb[row + x2] ^ prev[row + x2]) & 0xffffff) == 0) {
+                    x2--;
+                }
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x2);
+                if (minY == height) {
+                    minY = y;
+                }
+                maxY = y;
+            }
+            if (maxY < 0) {
+                // identical frame: a single pixel keeps the frame and its delay
+                minX = maxX = minY = maxY = 0;
+            }
+            left = minX;
+            top = minY;
+            rectW = maxX - minX + 1;
+            rectH = maxY - minY + 1;
+        }
+
+        /**
+         * Returns index of palette color closest to c
+         */
+        private int findClosest(Color c) {
+            if (colorTab == null) {
+                return -1;
+            }
+            return this.findClosest(c.getRed(), c.getGreen(), c.getBlue());
+        }
+
+        /**
+         * Returns index of the used palette color closest to r, g, b
+         */
+        private int findClosest(int r, int g, int b) {
+            int minpos = 0;
+            int dmin = 256 * 256 * 256;
+            int len = colorTab.length;
+            for (int i = 0; i < len; ) {
+                int dr = r - (colorTab[i++] & 0xff);
+                int dg = g - (colorTab[i++] & 0xff);
+                int db = b - (colorTab[i] & 0xff);
+                int d = dr * dr + dg * dg + db * db;
+                int index = i / 3;
+                if (usedEntry[index] && (d < dmin)) {
+                    dmin = d;
+                    minpos = index;
+                }
+                i++;
+            }
+            return minpos;
+        }
+
+        /**
+         * Extracts image pixels into byte array "pixels"
+         */
+        private void getImagePixels(BufferedImage image) {
+            int w = image.getWidth();
+            int h = image.getHeight();
+            int type = image.getType();
+            if (w != width || h != height || type != BufferedImage.TYPE_3BYTE_BGR) {
+                // create new image with right size/format
+                BufferedImage temp = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                Graphics2D graphics = temp.createGraphics();
+                graphics.drawImage(image, 0, 0, null);
+                image = temp;
+            }
+            pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        }
+
+        /**
+         * Writes Graphic Control Extension
+         */
+        private void writeGraphicCtrlExt() throws IOException {
+            // extension introducer
+            out.write(0x21);
+            // GCE label
+            out.write(0xf9);
+            // data block size
+            out.write(4);
+            int transp, disp;
+            if (transparent == null) {
+                transp = 0;
+                // dispose = no action
+                disp = 0;
+            } else {
+                transp = 1;
+                // force clear if using transparent color
+                disp = 2;
+            }
+            if (transparent == null && transIndex >= 0) {
+                // reserved index of a delta frame
+                transp = 1;
+            }
+            if (dispose >= 0) {
+                // user override
+                disp = dispose & 7;
+            }
+            if (delta) {
+                // do not dispose, the next delta frame is drawn over this one
+                disp = 1;
+            }
+            disp <<= 2;
+            // packed fields
+            out.write(disp | transp);
+            // delay x 1/100 sec
+            writeShort(out, delay);
+            // transparent color index, filled in when written if no transparent color is given
+            transIndexOffset = out.size();
+            out.write(transIndex);
+            // block terminator
             out.write(0);
-        } else {
-            // specify normal LCT
-            out.write(0x80 | palSize);
         }
-    }
 
-    /**
-     * Writes Logical Screen Descriptor
-     */
-    private void writeLSD() throws IOException {
-        // logical screen size
-        this.writeShort(width);
-        this.writeShort(height);
-        // packed fields
-        out.write((0x80 | 0x70 | palSize));
-        // background color index
-        out.write(0);
-        // pixel aspect ratio - assume 1:1
-        out.write(0);
-    }
+        /**
+         * Writes Image Descriptor
+         */
+        private void writeImageDesc() throws IOException {
 
-    /**
-     * Writes Netscape application extension to define
-     * repeat count.
-     */
-    private void writeNetscapeExt() throws IOException {
-        // extension introducer
-        out.write(0x21);
-        // app extension label
-        out.write(0xff);
-        // block size
-        out.write(11);
-        // app id + auth code
-        this.writeString("NETSCAPE" + "2.0");
-        // sub-block size
-        out.write(3);
-        // loop sub-block id
-        out.write(1);
-        // loop count (extra iterations, 0=repeat forever)
-        this.writeShort(repeat);
-        // block terminator
-        out.write(0);
-    }
+            out.write(0x2c); // image separator
+            // image position x,y, 0,0 unless this is a delta frame
+            writeShort(out, left);
+            writeShort(out, top);
+            // image size
+            writeShort(out, rectW);
+            writeShort(out, rectH);
+            // packed fields
+            if (!this.hasLocalTable()) {
+                // no LCT  - GCT is used for first (or only) frame, or for frames with the global fixed palette
+                out.write(0);
+            } else {
+                // specify normal LCT
+                out.write(0x80 | palSize);
+            }
+        }
 
-    /**
-     * Writes color table
-     */
-    private void writePalette() throws IOException {
-        out.write(colorTab, 0, colorTab.length);
-        int n = (3 * 256) - colorTab.length;
-        for (int i = 0; i < n; i++) {
+        /**
+         * Writes Logical Screen Descriptor
+         */
+        private void writeLSD() throws IOException {
+            // logical screen size
+            writeShort(out, width);
+            writeShort(out, height);
+            // packed fields
+            out.write((0x80 | 0x70 | globalPalSize));
+            // background color index
+            out.write(0);
+            // pixel aspect ratio - assume 1:1
             out.write(0);
         }
-    }
 
-    /**
-     * Encodes and writes pixel data
-     */
-    private void writePixels() throws IOException {
-        new LZWEncoder(width, height, indexedPixels, colorDepth).encode(out);
+        /**
+         * Writes Netscape application extension to define
+         * repeat count.
+         */
+        private void writeNetscapeExt() throws IOException {
+            // extension introducer
+            out.write(0x21);
+            // app extension label
+            out.write(0xff);
+            // block size
+            out.write(11);
+            // app id + auth code
+            writeString(out, "NETSCAPE" + "2.0");
+            // sub-block size
+            out.write(3);
+            // loop sub-block id
+            out.write(1);
+            // loop count (extra iterations, 0=repeat forever)
+            writeShort(out, repeat);
+            // block terminator
+            out.write(0);
+        }
+
+        /**
+         * Writes color table
+         */
+        private void writePalette(byte[] colorTab, int palSize) throws IOException {
+            out.write(colorTab, 0, colorTab.length);
+            int n = 3 * (1 << (palSize + 1)) - colorTab.length;
+            for (int i = 0; i < n; i++) {
+                out.write(0);
+            }
+        }
+
+        /**
+         * Encodes and writes pixel data
+         */
+        private void writePixels() throws IOException {
+            LZWEncoder.encode(out, rectW, rectH, indexedPixels, colorDepth, stripSize);
+        }
     }
 
     /**
      * Write 16-bit value to output stream, LSB first
      */
-    private void writeShort(int value) throws IOException {
+    private static void writeShort(OutputStream out, int value) throws IOException {
         out.write(value & 0xff);
         out.write((value >> 8) & 0xff);
     }
@@ -551,7 +1325,7 @@ public class AnimatedGifEncoder {
     /**
      * Writes string to output stream
      */
-    private void writeString(String s) throws IOException {
+    private static void writeString(OutputStream out, String s) throws IOException {
         for (int i = 0; i < s.length(); i++) {
             out.write((byte) s.charAt(i));
         }
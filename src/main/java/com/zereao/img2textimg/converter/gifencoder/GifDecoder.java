@@ -1,12 +1,26 @@
 package com.zereao.img2textimg.converter.gifencoder;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /*
  * Copyright 2014 Dhyan Blum
@@ -73,12 +87,25 @@ public final class GifDecoder {
          */
         private byte[] in;
 
+        /**
+         * Number of bits holding data, excluding the 2 padding bytes
+         */
+        private int bitLimit;
+
         /**
          * To avoid costly bounds checks, 'in' needs 2 more 0-bytes at the end
          */
         private void init(final byte[] in) {
             this.in = in;
             bitPos = 0;
+            bitLimit = (in.length - 2) << 3;
+        }
+
+        /**
+         * @return True if a complete code can still be read
+         */
+        private boolean hasNext() {
+            return bitPos + numBits <= bitLimit;
         }
 
         private int read() {
@@ -102,89 +129,108 @@ public final class GifDecoder {
         }
     }
 
-    @SuppressWarnings("UnusedReturnValue")
-    static final class CodeTable {
-        /**
-         * Maps codes to lists of colors
-         */
-        private final int[][] tbl;
-        /**
-         * Number of colors +2 for CLEAR + EOI
-         */
-        private int initTableSize;
-        /**
-         * Initial code size
-         */
-        private int initCodeSize;
+    /**
+     * LZW decoder over reusable primitive tables. Each dictionary entry is
+     * stored as (prefix code, last index, first index, length), so adding an
+     * entry never allocates and a string is written back to front by walking
+     * its prefix chain.
+     */
+    static final class LzwDecoder {
+        private static final int MAX_CODES = 4096;
         /**
-         * First code limit
+         * Code of the string without its last index, -1 for single indices
          */
-        private int initCodeLimit;
+        private final short[] prefix = new short[MAX_CODES];
         /**
-         * Current code size, maximum is 12 bits
+         * Last palette index of the string
          */
-        private int codeSize;
+        private final byte[] suffix = new byte[MAX_CODES];
         /**
-         * Next available code for a new entry
+         * First palette index of the string
          */
-        private int nextCode;
+        private final byte[] first = new byte[MAX_CODES];
         /**
-         * Increase codeSize when nextCode == limit
+         * Number of palette indices in the string
          */
-        private int nextCodeLimit;
+        private final short[] length = new short[MAX_CODES];
+        private final BitReader bits = new BitReader();
+
         /**
-         * Notify when code sizes increases
+         * Decodes the frame's LZW data into palette indices.
+         *
+         * @param fr  Frame holding the LZW data
+         * @param out Target array, receives fr.wh indices in stream order
+         * @return Number of indices written, less than fr.wh if the data is truncated
          */
-        private BitReader br;
-
-        CodeTable() {
-            tbl = new int[4096][1];
-        }
-
-        private int add(final int[] indices) {
-            if (nextCode < 4096) {
-                if (nextCode == nextCodeLimit && codeSize < 12) {
-                    // Max code size is 12
-                    codeSize++;
-                    br.setNumBits(codeSize);
-                    // 2^codeSize - 1
-                    nextCodeLimit = (1 << codeSize) - 1;
-                }
-                tbl[nextCode++] = indices;
-            }
-            return codeSize;
-        }
-
-        private int clear() {
-            codeSize = initCodeSize;
-            br.setNumBits(codeSize);
-            nextCodeLimit = initCodeLimit;
-            // Don't recreate table, reset pointer
-            nextCode = initTableSize;
-            return codeSize;
-        }
-
-        private void init(final GifFrame fr, final int[] activeColTbl, final BitReader br) {
-            this.br = br;
-            final int numColors = activeColTbl.length;
-            initCodeSize = fr.firstCodeSize;
-            // 2^initCodeSize - 1
-            initCodeLimit = (1 << initCodeSize) - 1;
-            initTableSize = fr.endOfInfoCode + 1;
-            nextCode = initTableSize;
-            for (int c = numColors - 1; c >= 0; c--) {
-                // Translated color
-                tbl[c][0] = activeColTbl[c];
+        int decode(final GifFrame fr, final byte[] out) {
+            final short[] prefix = this.prefix, length = this.length;
+            final byte[] suffix = this.suffix, first = this.first;
+            final BitReader bits = this.bits;
+            bits.init(fr.data);
+            final int clearCode = fr.clearCode, endCode = fr.endOfInfoCode;
+            final int limit = fr.wh;
+            // Code sizes of earlier frames may differ, reset this frame's single-index entries
+            for (int c = 0; c < clearCode; c++) {
+                prefix[c] = -1;
+                suffix[c] = first[c] = (byte) c;
+                length[c] = 1;
             }
-            // A gap may follow with no colors assigned if numCols < CLEAR
-            // CLEAR
-            tbl[fr.clearCode] = new int[]{fr.clearCode};
-            // EOI
-            tbl[fr.endOfInfoCode] = new int[]{fr.endOfInfoCode};
-            // Locate transparent color in code table and set to 0
-            if (fr.transpColFlag && fr.transpColIndex < numColors) {
-                tbl[fr.transpColIndex][0] = 0;
+            int codeSize = fr.firstCodeSize;
+            bits.setNumBits(codeSize);
+            int nextCode = endCode + 1;
+            int prevCode = -1;
+            int outPos = 0;
+            while (outPos < limit && bits.hasNext()) {
+                final int code = bits.read();
+                if (code == clearCode) {
+                    codeSize = fr.firstCodeSize;
+                    bits.setNumBits(codeSize);
+                    nextCode = endCode + 1;
+                    prevCode = -1;
+                    continue;
+                } else if (code == endCode) {
+                    break;
+                }
+                if (prevCode == -1) {
+                    // First code after CLEAR is always a single index
+                    if (code > endCode) {
+                        break;
+                    }
+                    out[outPos++] = suffix[code];
+                    prevCode = code;
+                    continue;
+                }
+                if (code > nextCode) {
+                    // Corrupt data, keep what we have
+                    break;
+                }
+                if (nextCode < MAX_CODES) {
+                    // Previous string + first index of the current one. If the
+                    // code is not in the table yet (KwKwK), it is exactly this entry.
+                    prefix[nextCode] = (short) prevCode;
+                    suffix[nextCode] = code < nextCode ? first[code] : first[prevCode];
+                    first[nextCode] = first[prevCode];
+                    length[nextCode] = (short) (length[prevCode] + 1);
+                    if (++nextCode == 1 << codeSize && codeSize < 12) {
+                        bits.setNumBits(++codeSize);
+                    }
+                } else if (code == nextCode) {
+                    // Table is full and the code cannot be defined
+                    break;
+                }
+                // Write the string back to front, dropping indices past the frame end
+                final int end = outPos + length[code];
+                int c = code;
+                for (int i = end - 1; i >= outPos; i--) {
+                    if (i < limit) {
+                        out[i] = suffix[c];
+                    }
+                    c = prefix[c];
+                }
+                outPos = Math.min(end, limit);
+                prevCode = code;
             }
+            return outPos;
         }
     }
 
@@ -266,6 +312,15 @@ public final class GifDecoder {
          * Full drawn image, not just the frame area
          */
         private BufferedImage img;
+        /**
+         * Pending LZW decode of this frame, yields its palette indices in
+         * canvas row order
+         */
+        private Future<byte[]> decoding;
+        /**
+         * Number of valid indices once decoded, fewer than wh if truncated
+         */
+        private int decodedCount;
     }
 
     public final class GifImage {
@@ -327,81 +382,58 @@ public final class GifDecoder {
          */
         int repetitions = 0;
         /**
-         * Currently drawn frame
+         * ARGB pixels of the working canvas, all frames are composited on it
          */
-        private BufferedImage img = null;
+        private int[] canvas = null;
         /**
-         * Previous frame's pixels
+         * Index of the last frame composited on the canvas, -1 if none
          */
-        private int[] prevPx = null;
-        private final BitReader bits = new BitReader();
-        private final CodeTable codes = new CodeTable();
-        private Graphics2D g;
-
-        private int[] decode(final GifFrame fr, final int[] activeColTbl) {
-            codes.init(fr, activeColTbl, bits);
-            // Incoming codes
-            bits.init(fr.data);
-            final int clearCode = fr.clearCode, endCode = fr.endOfInfoCode;
-            // Target image pixel array
-            final int[] out = new int[wh];
-            // Code table
-            final int[][] tbl = codes.tbl;
-            // Next pixel position in the output image array
-            int outPos = 0;
-            // Init code table
-            codes.clear();
-            // Skip leading clear code
-            bits.read();
-            // Read first code
-            int code = bits.read();
-            // Output pixel for first code
-            int[] pixels = tbl[code];
-            System.arraycopy(pixels, 0, out, outPos, pixels.length);
-            outPos += pixels.length;
-            while (true) {
-                final int prevCode = code;
-                // Get next code in stream
-                code = bits.read();
-                // After a CLEAR table, there is
-                if (code == clearCode) {
-                    // no previous code, we need to read
-                    codes.clear();
-                    // a new one
-                    code = bits.read();
-                    // Output pixels
-                    pixels = tbl[code];
-                    System.arraycopy(pixels, 0, out, outPos, pixels.length);
-                    outPos += pixels.length;
-                    // Back to the loop with a valid previous code
-                    continue;
-                } else if (code == endCode) {
-                    break;
-                }
-                final int[] prevVals = tbl[prevCode];
-                final int[] prevValsAndK = new int[prevVals.length + 1];
-                System.arraycopy(prevVals, 0, prevValsAndK, 0, prevVals.length);
-                // Code table contains code
-                if (code < codes.nextCode) {
-                    // Output pixels
-                    pixels = tbl[code];
-                    System.arraycopy(pixels, 0, out, outPos, pixels.length);
-                    outPos += pixels.length;
-                    prevValsAndK[prevVals.length] = tbl[code][0];
-                } else {
-                    prevValsAndK[prevVals.length] = prevVals[0];
-                    System.arraycopy(prevValsAndK, 0, out, outPos, prevValsAndK.length);
-                    outPos += prevValsAndK.length;
-                }
-                // Previous indices + K
-                codes.add(prevValsAndK);
-            }
-            return out;
-        }
+        private int drawn = -1;
+        /**
+         * Canvas area under the current frame, saved for disposal method 3
+         */
+        private int[] saved = new int[0];
+        /**
+         * A canvas snapshot is kept every keyframeInterval frames, random
+         * access then draws at most that many frames
+         */
+        private int keyframeInterval = 16;
+        /**
+         * Upper bound in bytes for cached frame images and canvas snapshots
+         */
+        private long memoryBudget = 128L << 20;
+        /**
+         * Canvas before drawing the frame with the given index
+         */
+        private final TreeMap<Integer, int[]> keyframes = new TreeMap<>();
+        /**
+         * Frames holding an image by index, least recently used first
+         */
+        private final LinkedHashMap<Integer, GifFrame> cached = new LinkedHashMap<>(16, 0.75f, true);
+        /**
+         * Decoder state per thread, decode tasks of different frames run concurrently
+         */
+        private final ThreadLocal<LzwDecoder> decoders = ThreadLocal.withInitial(LzwDecoder::new);
+        /**
+         * Recycled index buffers, each large enough for any frame
+         */
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private int bufferSize = -1;
+        /**
+         * Pool for the LZW decode phase, null to decode on the calling thread
+         */
+        private ExecutorService decodePool;
+        /**
+         * Number of frames decoded ahead of the compositing phase
+         */
+        private int decodeWindow;
+        /**
+         * Active color table of the current frame, see {@link #palette}
+         */
+        private final int[] palette = new int[256];
 
-        private int[] deinterlace(final int[] src, final GifFrame fr) {
+        private byte[] deinterlace(final byte[] src, final byte[] dest, final GifFrame fr) {
             final int w = fr.w, h = fr.h, wh = fr.wh;
-            final int[] dest = new int[src.length];
             // Interlaced images are organized in 4 sets of pixel lines
             // Line no. = ceil(h/8.0)
             final int set2Y = (h + 7) >>> 3;
@@ -434,35 +466,153 @@ public final class GifDecoder {
             return dest;
         }
 
-        private void drawFrame(final GifFrame fr) {
+        /**
+         * Decodes LZW frames on the given pool while earlier frames are being
+         * composited. Decoding a frame only depends on its own data, so up to
+         * {@code window} frames ahead of the one being drawn are decoded in
+         * parallel; compositing and disposal stay sequential.
+         *
+         * @param pool   Pool for the decode phase, null to decode on the calling thread
+         * @param window Number of frames to decode ahead
+         */
+        public void setDecodePool(final ExecutorService pool, final int window) {
+            this.decodePool = pool;
+            this.decodeWindow = Math.max(1, window);
+        }
+
+        private byte[] takeBuffer() {
+            final byte[] buf = buffers.poll();
+            return buf != null ? buf : new byte[bufferSize];
+        }
+
+        /**
+         * Decode phase: LZW data to palette indices in canvas row order
+         */
+        private byte[] decodeIndices(final GifFrame fr) {
+            byte[] pixels = takeBuffer();
+            final int count = decoders.get().decode(fr, pixels);
+            fr.decodedCount = count;
+            if (fr.interlaceFlag) {
+                // Rearrange pixel lines, missing indices become 0
+                Arrays.fill(pixels, count, fr.wh, (byte) 0);
+                final byte[] dest = takeBuffer();
+                deinterlace(pixels, dest, fr);
+                buffers.offer(pixels);
+                pixels = dest;
+                fr.decodedCount = fr.wh;
+            }
+            return pixels;
+        }
+
+        /**
+         * Submits the decode tasks of the frames in the window starting at index
+         */
+        private void scheduleDecode(final int index) {
+            if (bufferSize < 0) {
+                bufferSize = 0;
+                for (final GifFrame fr : frames) {
+                    bufferSize = Math.max(bufferSize, fr.wh);
+                }
+            }
+            if (decodePool == null) {
+                return;
+            }
+            for (int i = index, end = Math.min(frames.size(), index + decodeWindow); i < end; i++) {
+                final GifFrame fr = frames.get(i);
+                if (fr.decoding == null && fr.img == null) {
+                    fr.decoding = decodePool.submit(() -> decodeIndices(fr));
+                }
+            }
+        }
+
+        private byte[] awaitIndices(final GifFrame fr) {
+            final Future<byte[]> decoding = fr.decoding;
+            if (decoding == null) {
+                return decodeIndices(fr);
+            }
+            fr.decoding = null;
+            try {
+                return decoding.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decoding a frame", e);
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException("Failed to decode a frame", e.getCause());
+            }
+        }
+
+        /**
+         * Composites the frame directly on the canvas and applies its disposal
+         * method. Only the frame area is touched, the canvas is copied only if
+         * the caller keeps the frame.
+         *
+         * @param fr   Frame to draw
+         * @param keep Snapshot the canvas into fr.img before disposal
+         */
+        private void drawFrame(final GifFrame fr, final boolean keep) {
             // Determine the color table that will be active for this frame
             final int[] activeColTbl = fr.hasLocColTbl ? fr.localColTbl : globalColTbl;
-            // Get pixels from data stream
-            int[] pixels = decode(fr, activeColTbl);
-            if (fr.interlaceFlag) {
-                // Rearrange pixel lines
-                pixels = deinterlace(pixels, fr);
+            // Palette indices from the decode phase, missing indices stay transparent
+            final byte[] pixels = awaitIndices(fr);
+            final int n = fr.decodedCount;
+            final int[] palette = palette(fr, activeColTbl);
+            // Frame area clipped to the canvas
+            final int cw = Math.max(0, Math.min(fr.w, w - fr.x));
+            final int ch = Math.max(0, Math.min(fr.h, h - fr.y));
+            if (fr.disposalMethod == 3) {
+                // Keep the area we are about to draw on to restore it afterwards
+                if (saved.length < cw * ch) {
+                    saved = new int[cw * ch];
+                }
+                for (int r = 0; r < ch; r++) {
+                    System.arraycopy(canvas, (fr.y + r) * w + fr.x, saved, r * cw, cw);
+                }
+            }
+            for (int r = 0; r < ch; r++) {
+                final int src = r * fr.w, dst = (fr.y + r) * w + fr.x;
+                for (int c = 0, end = Math.min(cw, n - src); c < end; c++) {
+                    // Transparent pixels are 0 and leave the canvas untouched
+                    final int argb = palette[pixels[src + c] & 0xFF];
+                    if (argb != 0) {
+                        canvas[dst + c] = argb;
+                    }
+                }
+            }
+            if (keep) {
+                // 2 = ARGB, a copy so we don't expose internal state
+                fr.img = new BufferedImage(w, h, 2);
+                System.arraycopy(canvas, 0, ((DataBufferInt) fr.img.getRaster().getDataBuffer()).getData(), 0, wh);
             }
-            // Create image of type 2=ARGB for frame area
-            final BufferedImage frame = new BufferedImage(fr.w, fr.h, 2);
-            System.arraycopy(pixels, 0, ((DataBufferInt) frame.getRaster().getDataBuffer()).getData(), 0, fr.wh);
-            // Draw frame area on top of working image
-            g.drawImage(frame, fr.x, fr.y, null);
-            // Keep one copy as "previous frame" in case we need to restore it
-            prevPx = new int[wh];
-            System.arraycopy(((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, prevPx, 0, wh);
-            // Create another copy for the end user to not expose internal state
-            // 2 = ARGB
-            fr.img = new BufferedImage(w, h, 2);
-            System.arraycopy(prevPx, 0, ((DataBufferInt) fr.img.getRaster().getDataBuffer()).getData(), 0, wh);
             // Handle disposal of current frame
             if (fr.disposalMethod == 2) {
                 // Restore to background color (clear frame area only)
-                g.clearRect(fr.x, fr.y, fr.w, fr.h);
-            } else if (fr.disposalMethod == 3 && prevPx != null) {
-                // Restore previous frame
-                System.arraycopy(prevPx, 0, ((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, wh);
+                for (int r = 0; r < ch; r++) {
+                    final int dst = (fr.y + r) * w + fr.x;
+                    Arrays.fill(canvas, dst, dst + cw, 0);
+                }
+            } else if (fr.disposalMethod == 3) {
+                // Restore the frame area to what it was before this frame
+                for (int r = 0; r < ch; r++) {
+                    System.arraycopy(saved, r * cw, canvas, (fr.y + r) * w + fr.x, cw);
+                }
+            }
+            buffers.offer(pixels);
+        }
+
+        /**
+         * @return ARGB colors for all 256 possible indices, 0 (transparent) for
+         * the transparent index and indices beyond the color table
+         */
+        private int[] palette(final GifFrame fr, final int[] activeColTbl) {
+            final int numColors = activeColTbl == null ? 0 : Math.min(activeColTbl.length, 256);
+            if (numColors > 0) {
+                System.arraycopy(activeColTbl, 0, palette, 0, numColors);
+            }
+            Arrays.fill(palette, numColors, 256, 0);
+            if (fr.transpColFlag) {
+                palette[fr.transpColIndex] = 0;
             }
+            return palette;
         }
 
         /**
@@ -492,39 +642,97 @@ public final class GifDecoder {
             return frames.get(index).delay;
         }
 
+        /**
+         * @param interval Keep a canvas snapshot every interval frames, at least 1
+         */
+        public synchronized void setKeyframeInterval(final int interval) {
+            keyframeInterval = Math.max(1, interval);
+            keyframes.clear();
+        }
+
+        /**
+         * @param bytes Upper bound for cached frame images and canvas snapshots.
+         *              Least recently used frame images are released first; if
+         *              snapshots alone exceed it, every other one is dropped
+         *              and the keyframe interval doubles.
+         */
+        public synchronized void setMemoryBudget(final long bytes) {
+            memoryBudget = bytes;
+            enforceBudget(-1);
+        }
+
         /**
          * @param index Index of the frame to return as image, starting from 0.
          *              For incremental calls such as [0, 1, 2, ...] the method's
          *              run time is O(1) as only one frame is drawn per call. For
-         *              random access calls such as [7, 12, ...] the run time is
-         *              O(N+1) with N being the number of previous frames that
-         *              need to be drawn before N+1 can be drawn on top. Once a
-         *              frame has been drawn it is being cached and the run time
-         *              is more or less O(0) to retrieve it from the list.
+         *              random access calls such as [7, 12, ...] drawing resumes
+         *              from the closest canvas snapshot, so at most
+         *              keyframeInterval frames are drawn. Returned frames are
+         *              cached within the memory budget, retrieving one again is
+         *              more or less O(0).
          * @return A BufferedImage for the specified frame.
          */
-        public BufferedImage getFrame(final int index) {
-            if (img == null) { // Init
-                img = new BufferedImage(w, h, 2); // 2 = ARGB
-                g = img.createGraphics();
-                g.setBackground(new Color(0, true)); // Transparent color
+        public synchronized BufferedImage getFrame(final int index) {
+            if (canvas == null) { // Init, transparent
+                canvas = new int[wh];
             }
-            GifFrame fr = frames.get(index);
-            if (fr.img == null) {
-                // Draw all frames until and including the requested frame
-                for (int i = 0; i <= index; i++) {
-                    fr = frames.get(i);
-                    if (fr.img == null) {
-                        drawFrame(fr);
-                    }
+            final GifFrame fr = frames.get(index);
+            if (fr.img != null) {
+                cached.get(index); // Mark as recently used
+                return fr.img;
+            }
+            // Resume from a snapshot if it is closer than the current canvas
+            final Map.Entry<Integer, int[]> keyframe = keyframes.floorEntry(index);
+            final int resume = keyframe == null ? 0 : keyframe.getKey();
+            if (drawn >= index || drawn < resume - 1) {
+                if (keyframe == null) {
+                    Arrays.fill(canvas, 0);
+                } else {
+                    System.arraycopy(keyframe.getValue(), 0, canvas, 0, wh);
                 }
+                drawn = resume - 1;
             }
+            // Draw all frames until and including the requested frame
+            while (drawn < index) {
+                drawn++;
+                if (drawn > 0 && drawn % keyframeInterval == 0 && !keyframes.containsKey(drawn)) {
+                    keyframes.put(drawn, canvas.clone());
+                }
+                scheduleDecode(drawn);
+                drawFrame(frames.get(drawn), drawn == index);
+            }
+            cached.put(index, fr);
+            enforceBudget(index);
             return fr.img;
         }
 
+        /**
+         * Releases cached frame images, then thins out snapshots, until the
+         * memory budget is met
+         *
+         * @param keep Index of the frame that is being returned, never released
+         */
+        private void enforceBudget(final int keep) {
+            final long canvasBytes = wh * 4L;
+            final Iterator<Map.Entry<Integer, GifFrame>> lru = cached.entrySet().iterator();
+            while ((cached.size() + keyframes.size()) * canvasBytes > memoryBudget && lru.hasNext()) {
+                final Map.Entry<Integer, GifFrame> eldest = lru.next();
+                if (eldest.getKey() != keep) {
+                    eldest.getValue().img = null;
+                    lru.remove();
+                }
+            }
+            while ((cached.size() + keyframes.size()) * canvasBytes > memoryBudget && !keyframes.isEmpty()) {
+                keyframeInterval <<= 1;
+                keyframes.keySet().removeIf(i -> i % keyframeInterval != 0);
+            }
+        }
+
         public List<BufferedImage> getFrames() {
-            List<BufferedImage> frameImgList = new ArrayList<>();
-            frames.forEach(fr -> frameImgList.add(fr.img));
+            List<BufferedImage> frameImgList = new ArrayList<>(frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                frameImgList.add(getFrame(i));
+            }
             return frameImgList;
         }
 
@@ -557,7 +765,43 @@ public final class GifDecoder {
      * @return A GifImage object exposing the properties of the GIF image.
      * @throws IOException If the image violates the GIF specification or is truncated.
      */
-    private static GifImage read(final byte[] in) throws IOException {
+    public static GifImage read(final byte[] in) throws IOException {
+        return read(ByteBuffer.wrap(in));
+    }
+
+    /**
+     * Parses the GIF directly from the buffer, e.g. a memory-mapped file.
+     * Only the LZW data of each frame is copied; the buffer's position is
+     * not modified.
+     *
+     * @param in Raw image data from the buffer's current position to its limit
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public static GifImage read(final ByteBuffer in) throws IOException {
+        return parse(in.slice());
+    }
+
+    /**
+     * Maps the file read-only and parses it without copying it onto the heap.
+     *
+     * @param path GIF file
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If an I/O error occurs, the file is larger than 2 GB,
+     *                     the image violates the GIF specification or is truncated.
+     */
+    public static GifImage read(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("GIF file too large to map: " + path);
+            }
+            // The mapping stays valid after the channel has been closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    private static GifImage parse(final ByteBuffer in) throws IOException {
         final GifDecoder decoder = new GifDecoder();
         final GifImage img = decoder.new GifImage();
         // Currently open frame
@@ -569,14 +813,14 @@ public final class GifDecoder {
             img.globalColTbl = new int[img.sizeOfGlobColTbl];
             pos = readColTbl(in, img.globalColTbl, pos);
         }
-        while (pos < in.length) {
-            final int block = in[pos] & 0xFF;
+        while (pos < in.limit()) {
+            final int block = in.get(pos) & 0xFF;
             switch (block) {
                 case 0x21: // Extension introducer
-                    if (pos + 1 >= in.length) {
+                    if (pos + 1 >= in.limit()) {
                         throw new IOException("Unexpected end of file.");
                     }
-                    switch (in[pos + 1] & 0xFF) {
+                    switch (in.get(pos + 1) & 0xFF) {
                         case 0xFE: // Comment extension
                             pos = readTextExtension(in, pos);
                             break;
@@ -618,11 +862,11 @@ public final class GifDecoder {
                     // and wait for a valid block. Experience: It'll get worse. b)
                     // Throw exception. c) Return gracefully if we are almost done
                     // processing. The frames we have so far should be error-free.
-                    final double progress = 1.0 * pos / in.length;
+                    final double progress = 1.0 * pos / in.limit();
                     if (progress < 0.9) {
                         throw new IOException("Unknown block at: " + pos);
                     }
-                    pos = in.length; // Exit loop
+                    pos = in.limit(); // Exit loop
             }
         }
         return img;
@@ -639,9 +883,31 @@ public final class GifDecoder {
      *                     specification or the GIF is truncated.
      */
     public static GifImage read(final InputStream is) throws IOException {
-        final byte[] data = new byte[is.available()];
-        is.read(data, 0, data.length);
-        return read(data);
+        // available() is only an estimate, read until the end of the stream
+        byte[] data = new byte[Math.max(is.available(), 8192)];
+        int length = 0;
+        int n;
+        while ((n = is.read(data, length, data.length - length)) != -1) {
+            length += n;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length << 1);
+            }
+        }
+        return read(ByteBuffer.wrap(data, 0, length));
+    }
+
+    /**
+     * @param in     Raw data
+     * @param i      Index of the first character
+     * @param length Number of characters
+     * @return The characters as a String
+     */
+    static String readString(final ByteBuffer in, final int i, final int length) {
+        final byte[] chars = new byte[length];
+        for (int c = 0; c < length; c++) {
+            chars[c] = in.get(i + c);
+        }
+        return new String(chars, StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -650,19 +916,19 @@ public final class GifDecoder {
      * @param i   Index of the first byte of the application extension
      * @return Index of the first byte after this extension
      */
-    static int readAppExt(final GifImage img, final byte[] in, int i) {
-        img.appId = new String(in, i + 3, 8); // should be "NETSCAPE"
-        img.appAuthCode = new String(in, i + 11, 3); // should be "2.0"
+    static int readAppExt(final GifImage img, final ByteBuffer in, int i) {
+        img.appId = readString(in, i + 3, 8); // should be "NETSCAPE"
+        img.appAuthCode = readString(in, i + 11, 3); // should be "2.0"
         i += 14; // Go to sub-block size, it's value should be 3
-        final int subBlockSize = in[i] & 0xFF;
+        final int subBlockSize = in.get(i) & 0xFF;
         // The only app extension widely used is NETSCAPE, it's got 3 data bytes
         if (subBlockSize == 3) {
-            // in[i+1] should have value 01, in[i+5] should be block terminator
-            img.repetitions = in[i + 2] & 0xFF | in[i + 3] & 0xFF << 8; // Short
+            // in.get(i+1) should have value 01, in.get(i+5) should be block terminator
+            img.repetitions = in.get(i + 2) & 0xFF | in.get(i + 3) & 0xFF << 8; // Short
             return i + 5;
         } // Skip unknown application extensions
-        while ((in[i] & 0xFF) != 0) { // While sub-block size != 0
-            i += (in[i] & 0xFF) + 1; // Skip to next sub-block
+        while ((in.get(i) & 0xFF) != 0) { // While sub-block size != 0
+            i += (in.get(i) & 0xFF) + 1; // Skip to next sub-block
         }
         return i + 1;
     }
@@ -673,13 +939,13 @@ public final class GifDecoder {
      * @param i      Index of the color table's first byte
      * @return Index of the first byte after the color table
      */
-    static final int readColTbl(final byte[] in, final int[] colors, int i) {
+    static final int readColTbl(final ByteBuffer in, final int[] colors, int i) {
         final int numColors = colors.length;
         for (int c = 0; c < numColors; c++) {
             final int a = 0xFF; // Alpha 255 (opaque)
-            final int r = in[i++] & 0xFF; // 1st byte is red
-            final int g = in[i++] & 0xFF; // 2nd byte is green
-            final int b = in[i++] & 0xFF; // 3rd byte is blue
+            final int r = in.get(i++) & 0xFF; // 1st byte is red
+            final int g = in.get(i++) & 0xFF; // 2nd byte is green
+            final int b = in.get(i++) & 0xFF; // 3rd byte is blue
             colors[c] = ((a << 8 | r) << 8 | g) << 8 | b;
         }
         return i;
@@ -691,11 +957,11 @@ public final class GifDecoder {
      * @param i  Index of the extension introducer
      * @return Index of the first byte after this block
      */
-    static final int readGraphicControlExt(final GifFrame fr, final byte[] in, final int i) {
-        fr.disposalMethod = (in[i + 3] & 0b00011100) >>> 2; // Bits 4-2
-        fr.transpColFlag = (in[i + 3] & 1) == 1; // Bit 0
-        fr.delay = in[i + 4] & 0xFF | (in[i + 5] & 0xFF) << 8; // 16 bit LSB
-        fr.transpColIndex = in[i + 6] & 0xFF; // Byte 6
+    static final int readGraphicControlExt(final GifFrame fr, final ByteBuffer in, final int i) {
+        fr.disposalMethod = (in.get(i + 3) & 0b00011100) >>> 2; // Bits 4-2
+        fr.transpColFlag = (in.get(i + 3) & 1) == 1; // Bit 0
+        fr.delay = in.get(i + 4) & 0xFF | (in.get(i + 5) & 0xFF) << 8; // 16 bit LSB
+        fr.transpColIndex = in.get(i + 6) & 0xFF; // Byte 6
         return i + 8; // Skipped byte 7 (blockTerminator), as it's always 0x00
     }
 
@@ -705,11 +971,11 @@ public final class GifDecoder {
      * @return Index of the first byte after this block
      * @throws IOException If the GIF header/trailer is missing, incomplete or unknown
      */
-    static int readHeader(final byte[] in, final GifImage img) throws IOException {
-        if (in.length < 6) { // Check first 6 bytes
+    static int readHeader(final ByteBuffer in, final GifImage img) throws IOException {
+        if (in.limit() < 6) { // Check first 6 bytes
             throw new IOException("Image is truncated.");
         }
-        img.header = new String(in, 0, 6);
+        img.header = readString(in, 0, 6);
         if (!img.header.equals("GIF87a") && !img.header.equals("GIF89a")) {
             throw new IOException("Invalid GIF header.");
         }
@@ -722,29 +988,32 @@ public final class GifDecoder {
      * @param i  Index of the first byte of this block, i.e. the minCodeSize
      * @return
      */
-    static final int readImgData(final GifFrame fr, final byte[] in, int i) {
-        final int fileSize = in.length;
-        final int minCodeSize = in[i++] & 0xFF; // Read code size, go to block
+    static final int readImgData(final GifFrame fr, final ByteBuffer in, int i) {
+        final int fileSize = in.limit();
+        final int minCodeSize = in.get(i++) & 0xFF; // Read code size, go to block
         final int clearCode = 1 << minCodeSize; // CLEAR = 2^minCodeSize
         fr.firstCodeSize = minCodeSize + 1; // Add 1 bit for CLEAR and EOI
         fr.clearCode = clearCode;
         fr.endOfInfoCode = clearCode + 1;
         final int imgDataSize = readImgDataSize(in, i);
         final byte[] imgData = new byte[imgDataSize + 2];
+        final ByteBuffer src = in.duplicate(); // Bulk reads without touching the caller's position
         int imgDataPos = 0;
-        int subBlockSize = in[i] & 0xFF;
+        int subBlockSize = in.get(i) & 0xFF;
         while (subBlockSize > 0) { // While block has data
             try { // Next line may throw exception if sub-block size is fake
                 final int nextSubBlockSizePos = i + subBlockSize + 1;
-                final int nextSubBlockSize = in[nextSubBlockSizePos] & 0xFF;
-                System.arraycopy(in, i + 1, imgData, imgDataPos, subBlockSize);
+                final int nextSubBlockSize = in.get(nextSubBlockSizePos) & 0xFF;
+                src.position(i + 1);
+                src.get(imgData, imgDataPos, subBlockSize);
                 imgDataPos += subBlockSize; // Move output data position
                 i = nextSubBlockSizePos; // Move to next sub-block size
                 subBlockSize = nextSubBlockSize;
             } catch (final Exception e) {
                 // Sub-block exceeds file end, only use remaining bytes
                 subBlockSize = fileSize - i - 1; // Remaining bytes
-                System.arraycopy(in, i + 1, imgData, imgDataPos, subBlockSize);
+                src.position(i + 1);
+                src.get(imgData, imgDataPos, subBlockSize);
                 imgDataPos += subBlockSize; // Move output data position
                 i += subBlockSize + 1; // Move to next sub-block size
                 break;
@@ -755,14 +1024,14 @@ public final class GifDecoder {
         return i;
     }
 
-    static final int readImgDataSize(final byte[] in, int i) {
-        final int fileSize = in.length;
+    static final int readImgDataSize(final ByteBuffer in, int i) {
+        final int fileSize = in.limit();
         int imgDataPos = 0;
-        int subBlockSize = in[i] & 0xFF;
+        int subBlockSize = in.get(i) & 0xFF;
         while (subBlockSize > 0) { // While block has data
             try { // Next line may throw exception if sub-block size is fake
                 final int nextSubBlockSizePos = i + subBlockSize + 1;
-                final int nextSubBlockSize = in[nextSubBlockSizePos] & 0xFF;
+                final int nextSubBlockSize = in.get(nextSubBlockSizePos) & 0xFF;
                 imgDataPos += subBlockSize; // Move output data position
                 i = nextSubBlockSizePos; // Move to next sub-block size
                 subBlockSize = nextSubBlockSize;
@@ -782,13 +1051,13 @@ public final class GifDecoder {
      * @param i  Index of the image separator, i.e. the first block byte
      * @return Index of the first byte after this block
      */
-    static final int readImgDescr(final GifFrame fr, final byte[] in, int i) {
-        fr.x = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 1-2: left
-        fr.y = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 3-4: top
-        fr.w = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 5-6: width
-        fr.h = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 7-8: height
+    static final int readImgDescr(final GifFrame fr, final ByteBuffer in, int i) {
+        fr.x = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 1-2: left
+        fr.y = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 3-4: top
+        fr.w = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 5-6: width
+        fr.h = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 7-8: height
         fr.wh = fr.w * fr.h;
-        final byte b = in[++i]; // Byte 9 is a packed byte
+        final byte b = in.get(++i); // Byte 9 is a packed byte
         fr.hasLocColTbl = (b & 0b10000000) >>> 7 == 1; // Bit 7
         fr.interlaceFlag = (b & 0b01000000) >>> 6 == 1; // Bit 6
         fr.sortFlag = (b & 0b00100000) >>> 5 == 1; // Bit 5
@@ -802,19 +1071,19 @@ public final class GifDecoder {
      * @param i   Start index of this block.
      * @return Index of the first byte after this block.
      */
-    static final int readLogicalScreenDescriptor(final GifImage img, final byte[] in, final int i) {
-        img.w = in[i] & 0xFF | (in[i + 1] & 0xFF) << 8; // 16 bit, LSB 1st
-        img.h = in[i + 2] & 0xFF | (in[i + 3] & 0xFF) << 8; // 16 bit
+    static final int readLogicalScreenDescriptor(final GifImage img, final ByteBuffer in, final int i) {
+        img.w = in.get(i) & 0xFF | (in.get(i + 1) & 0xFF) << 8; // 16 bit, LSB 1st
+        img.h = in.get(i + 2) & 0xFF | (in.get(i + 3) & 0xFF) << 8; // 16 bit
         img.wh = img.w * img.h;
-        final byte b = in[i + 4]; // Byte 4 is a packed byte
+        final byte b = in.get(i + 4); // Byte 4 is a packed byte
         img.hasGlobColTbl = (b & 0b10000000) >>> 7 == 1; // Bit 7
         final int colResPower = ((b & 0b01110000) >>> 4) + 1; // Bits 6-4
         img.colorResolution = 1 << colResPower; // 2^(N+1), As per the spec
         img.sortFlag = (b & 0b00001000) >>> 3 == 1; // Bit 3
         final int globColTblSizePower = (b & 7) + 1; // Bits 0-2
         img.sizeOfGlobColTbl = 1 << globColTblSizePower; // 2^(N+1), see spec
-        img.bgColIndex = in[i + 5] & 0xFF; // 1 Byte
-        img.pxAspectRatio = in[i + 6] & 0xFF; // 1 Byte
+        img.bgColIndex = in.get(i + 5) & 0xFF; // 1 Byte
+        img.pxAspectRatio = in.get(i + 6) & 0xFF; // 1 Byte
         return i + 7;
     }
 
@@ -823,12 +1092,12 @@ public final class GifDecoder {
      * @param pos Index of the extension introducer
      * @return Index of the first byte after this block
      */
-    static final int readTextExtension(final byte[] in, final int pos) {
+    static final int readTextExtension(final ByteBuffer in, final int pos) {
         int i = pos + 2; // Skip extension introducer and label
-        int subBlockSize = in[i++] & 0xFF;
-        while (subBlockSize != 0 && i < in.length) {
+        int subBlockSize = in.get(i++) & 0xFF;
+        while (subBlockSize != 0 && i < in.limit()) {
             i += subBlockSize;
-            subBlockSize = in[i++] & 0xFF;
+            subBlockSize = in.get(i++) & 0xFF;
         }
         return i;
     }
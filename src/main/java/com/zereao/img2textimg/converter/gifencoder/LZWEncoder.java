@@ -2,6 +2,10 @@ package com.zereao.img2textimg.converter.gifencoder;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Adapted from Jef Poskanzer's Java port by way of J. M. G. Elliott.
@@ -55,44 +59,100 @@ class LZWEncoder {
 
     private int curBits = 0;
 
-    private int[] masks = {0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F, 0x007F, 0x00FF, 0x01FF,
+    private static final int[] MASKS = {0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F, 0x007F, 0x00FF, 0x01FF,
             0x03FF, 0x07FF, 0x0FFF, 0x1FFF, 0x3FFF, 0x7FFF, 0xFFFF};
 
-    private int aCount;
+    /**
+     * maximum length of the data sub-blocks written
+     */
+    private static final int BLOCK_SIZE = 254;
 
-    private byte[] accum = new byte[256];
+    /**
+     * encoder per thread, reused for every frame the thread encodes
+     */
+    private static final ThreadLocal<LZWEncoder> ENCODERS = ThreadLocal.withInitial(LZWEncoder::new);
+
+    /**
+     * packed codes, LSB first, without sub-block framing
+     */
+    private byte[] packed = new byte[4096];
 
-    LZWEncoder(int width, int height, byte[] pixels, int colorDepth) {
+    private int packedLen;
+
+    /**
+     * code size byte, sub-blocks and block terminator, written at once
+     */
+    private byte[] framed = new byte[0];
+
+    /**
+     * in use by an encode call on this thread; a thread that helps other
+     * fork/join tasks while waiting for strips may encode another frame
+     */
+    private boolean busy;
+
+    private LZWEncoder() {
+    }
+
+    /**
+     * Encodes a frame with the calling thread's encoder, whose tables and
+     * buffers are reset instead of being allocated again
+     *
+     * @param os         output stream
+     * @param width      frame width
+     * @param height     frame height
+     * @param pixels     palette indices
+     * @param colorDepth number of bit planes
+     * @param stripSize  pixels per strip, 0 to encode serially
+     */
+    static void encode(OutputStream os, int width, int height, byte[] pixels, int colorDepth, int stripSize) throws IOException {
+        LZWEncoder encoder = ENCODERS.get();
+        if (encoder.busy) {
+            encoder = new LZWEncoder();
+        }
+        encoder.busy = true;
+        try {
+            encoder.reset(width, height, pixels, colorDepth);
+            encoder.encode(os, stripSize);
+        } finally {
+            encoder.busy = false;
+        }
+    }
+
+    private void reset(int width, int height, byte[] pixels, int colorDepth) {
         imgW = width;
         imgH = height;
         pixAry = pixels;
         initCodeSize = Math.max(2, colorDepth);
     }
 
-    private void charOut(byte c, OutputStream outs) throws IOException {
-        accum[aCount++] = c;
-        if (aCount >= 254) {
-            this.flushChar(outs);
+    private void charOut(byte c) {
+        if (packedLen == packed.length) {
+            packed = Arrays.copyOf(packed, packed.length * 2);
         }
+        packed[packedLen++] = c;
     }
 
-    private void clBlock(OutputStream outs) throws IOException {
+    private void clBlock() {
         clHash(hsize);
         freeEnt = clearCode + 2;
         clearFlg = true;
-        this.output(clearCode, outs);
+        this.output(clearCode);
     }
 
     /**
      * reset code table
      */
     private void clHash(int hsize) {
-        for (int i = 0; i < hsize; ++i) {
-            htab[i] = -1;
-        }
+        Arrays.fill(htab, 0, hsize, -1);
     }
 
-    private void compress(int initBits, OutputStream outs) throws IOException {
+    /**
+     * @param first whether to start with a clear code; later strips of a
+     *              frame get theirs when the strips are stitched together
+     * @param last  whether to end with the end of information code and
+     *              flush the remaining bits
+     */
+    private void compress(int initBits, boolean first, boolean last) {
         int fcode;
         int i;
         int c;
@@ -107,7 +167,9 @@ class LZWEncoder {
         clearCode = 1 << (initBits - 1);
         eofCode = clearCode + 1;
         freeEnt = clearCode + 2;
-        aCount = 0;
+        packedLen = 0;
+        curAccum = 0;
+        curBits = 0;
         ent = this.nextPixel();
         hshift = 0;
         for (fcode = hsize; fcode < 65536; fcode *= 2) {
@@ -116,7 +178,9 @@ class LZWEncoder {
         hshift = 8 - hshift;
         hsizeReg = hsize;
         this.clHash(hsizeReg);
-        this.output(clearCode, outs);
+        if (first) {
+            this.output(clearCode);
+        }
         outer_loop:
         while ((c = nextPixel()) != EOF) {
             fcode = (c << maxbits) + ent;
@@ -139,33 +203,133 @@ class LZWEncoder {
                     }
                 } while (htab[i] >= 0);
             }
-            this.output(ent, outs);
+            this.output(ent);
             ent = c;
             if (freeEnt < maxmaxcode) {
                 codetab[i] = freeEnt++;
                 htab[i] = fcode;
             } else {
-                this.clBlock(outs);
+                this.clBlock();
             }
         }
-        this.output(ent, outs);
-        this.output(eofCode, outs);
+        this.output(ent);
+        if (last) {
+            this.output(eofCode);
+        }
     }
 
-    void encode(OutputStream os) throws IOException {
-        os.write(initCodeSize);
+    private void encode(OutputStream os) throws IOException {
         remaining = imgW * imgH;
         curPixel = 0;
-        this.compress(initCodeSize + 1, os);
-        os.write(0);
+        this.compress(initCodeSize + 1, true, true);
+        this.writeBlocks(os, packed, packedLen);
+    }
+
+    /**
+     * Encodes the pixels in strips of {@code stripSize} pixels in parallel,
+     * on the current fork/join pool or the common pool. Each strip starts
+     * from an empty string table behind a clear code, so the strips only
+     * depend on their own pixels; their bit streams are stitched into one
+     * sub-block sequence. Every strip after the first costs one clear code
+     * and the compression lost while its string table fills up again.
+     * Strips use encoders of their own, as their output is kept until all
+     * strips are done.
+     *
+     * @param os        output stream
+     * @param stripSize pixels per strip, 0 or at least the frame size to encode serially
+     */
+    private void encode(OutputStream os, int stripSize) throws IOException {
+        int total = imgW * imgH;
+        if (stripSize <= 0 || total <= stripSize) {
+            this.encode(os);
+            return;
+        }
+        int n = (total + stripSize - 1) / stripSize;
+        List<ForkJoinTask<LZWEncoder>> tasks = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            int from = k * stripSize, to = Math.min(total, from + stripSize);
+            boolean first = k == 0, last = k == n - 1;
+            LZWEncoder strip = new LZWEncoder();
+            strip.reset(imgW, imgH, pixAry, initCodeSize);
+            tasks.add(ForkJoinTask.adapt(() -> strip.compressStrip(from, to, first, last)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        // each strip adds at most one clear code and one partial byte
+        int size = 0;
+        for (ForkJoinTask<LZWEncoder> task : tasks) {
+            size += task.join().packedLen + 3;
+        }
+        byte[] stitched = new byte[size];
+        int len = 0, acc = 0, bits = 0, prevBits = 0;
+        for (int k = 0; k < n; k++) {
+            LZWEncoder strip = tasks.get(k).join();
+            if (k > 0) {
+                // the clear code has the width the decoder expects after the previous strip's last code
+                acc |= strip.clearCode << bits;
+                bits += prevBits;
+                while (bits >= 8) {
+                    stitched[len++] = (byte) acc;
+                    acc >>>= 8;
+                    bits -= 8;
+                }
+            }
+            if (bits == 0) {
+                System.arraycopy(strip.packed, 0, stitched, len, strip.packedLen);
+                len += strip.packedLen;
+            } else {
+                for (int i = 0; i < strip.packedLen; i++) {
+                    acc |= (strip.packed[i] & 0xff) << bits;
+                    stitched[len++] = (byte) acc;
+                    acc >>>= 8;
+                }
+            }
+            // bits of the strip's last code that do not fill a byte
+            acc |= (strip.curAccum & MASKS[strip.curBits]) << bits;
+            bits += strip.curBits;
+            while (bits >= 8) {
+                stitched[len++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+            prevBits = strip.nBits;
+        }
+        if (bits > 0) {
+            stitched[len++] = (byte) acc;
+        }
+        this.writeBlocks(os, stitched, len);
+    }
+
+    /**
+     * Compresses pixels [from, to); the bits of the last code that do not
+     * fill a byte are left in curAccum/curBits unless this is the last strip
+     */
+    private LZWEncoder compressStrip(int from, int to, boolean first, boolean last) {
+        remaining = to - from;
+        curPixel = from;
+        this.compress(initCodeSize + 1, first, last);
+        return this;
     }
 
-    private void flushChar(OutputStream outs) throws IOException {
-        if (aCount > 0) {
-            outs.write(aCount);
-            outs.write(accum, 0, aCount);
-            aCount = 0;
+    /**
+     * Writes the code size, data as a sequence of sub-blocks and the block
+     * terminator in one bulk write
+     */
+    private void writeBlocks(OutputStream os, byte[] data, int len) throws IOException {
+        int size = len + (len + BLOCK_SIZE - 1) / BLOCK_SIZE + 2;
+        if (framed.length < size) {
+            framed = new byte[Math.max(size, framed.length * 2)];
+        }
+        byte[] framed = this.framed;
+        int pos = 0;
+        framed[pos++] = (byte) initCodeSize;
+        for (int off = 0; off < len; off += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, len - off);
+            framed[pos++] = (byte) n;
+            System.arraycopy(data, off, framed, pos, n);
+            pos += n;
         }
+        framed[pos++] = 0;
+        os.write(framed, 0, pos);
     }
 
     private int maxCode(int nBits) {
@@ -181,8 +345,8 @@ class LZWEncoder {
         return pix & 0xff;
     }
 
-    private void output(int code, OutputStream outs) throws IOException {
-        curAccum &= masks[curBits];
+    private void output(int code) {
+        curAccum &= MASKS[curBits];
         if (curBits > 0) {
             curAccum |= (code << curBits);
         } else {
@@ -190,7 +354,7 @@ class LZWEncoder {
         }
         curBits += nBits;
         while (curBits >= 8) {
-            this.charOut((byte) (curAccum & 0xff), outs);
+            this.charOut((byte) (curAccum & 0xff));
             curAccum >>= 8;
             curBits -= 8;
         }
@@ -209,11 +373,11 @@ class LZWEncoder {
         }
         if (code == eofCode) {
             while (curBits > 0) {
-                this.charOut((byte) (curAccum & 0xff), outs);
+                this.charOut((byte) (curAccum & 0xff));
                 curAccum >>= 8;
                 curBits -= 8;
             }
-            this.flushChar(outs);
+            curBits = 0;
         }
     }
 }
\ No newline at end of file
@@ -17,6 +17,11 @@ public class ThreadPoolUtils {
             new ArrayBlockingQueue<>(100),
             new ThreadPoolExecutor.AbortPolicy());
 
+    /**
+     * 共享的 ForkJoinPool，用于单张大图的条带并行计算，并行度等于CPU核数
+     */
+    private static ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     public static void execute(Runnable task) {
         executor.execute(task);
     }
@@ -25,7 +30,12 @@ public class ThreadPoolUtils {
         return executor.submit(task);
     }
 
+    public static ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
     public static void shutdown() {
         executor.shutdown();
+        forkJoinPool.shutdown();
     }
 }